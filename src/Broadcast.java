@@ -0,0 +1,99 @@
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Tracks one message fanned out to many clients and reports when the last client has received it
+class Broadcast
+{
+	private final String description;
+	private final long startTime;
+
+	// Starts at 1 so the broadcast can't finish before every client has been handed the message
+	private final AtomicInteger pending;
+	private int numClients;
+
+	private final CompletableFuture<Broadcast> delivered;
+	private volatile long deliveryTime;
+
+	public Broadcast(String description)
+	{
+		this.description = description;
+		startTime = System.nanoTime();
+		pending = new AtomicInteger(1);
+		numClients = 0;
+		delivered = new CompletableFuture<Broadcast>();
+		deliveryTime = -1;
+	}
+
+	// Count a client that has been handed this message
+	void addClient()
+	{
+		pending.incrementAndGet();
+		numClients++;
+	}
+
+	// Called once a client's socket has taken the whole message (or the client has gone away)
+	void clientDelivered()
+	{
+		ServerMetrics.BROADCAST_CLIENT_DELIVERY.recordSince(startTime);
+		release();
+	}
+
+	// Called by the broadcaster once every client has been handed the message
+	Broadcast complete()
+	{
+		release();
+		return this;
+	}
+
+	private void release()
+	{
+		if(pending.decrementAndGet() == 0)
+			finish();
+	}
+
+	// Record how long the slowest client took to receive the message, and log it when debugging
+	private void finish()
+	{
+		deliveryTime = System.nanoTime() - startTime;
+
+		if(numClients > 0)
+		{
+			ServerMetrics.BROADCAST_DURATION.record(deliveryTime);
+
+			if(Server.LOG_BROADCASTS)
+				System.out.printf("Delivered %s to %d clients in %.2f ms%n", description, numClients, deliveryTime / 1_000_000.0);
+		}
+
+		delivered.complete(this);
+	}
+
+	// Wait until every client has received the message, returns false if the timeout passed first
+	public boolean awaitDelivery(long timeout, TimeUnit unit) throws InterruptedException
+	{
+		try
+		{
+			delivered.get(timeout, unit);
+			return true;
+		}
+
+		catch(TimeoutException | ExecutionException e)
+		{
+			return false;
+		}
+	}
+
+	// Run a task once every client has received the message (runs on whichever thread finishes the broadcast)
+	public void whenDelivered(Runnable task)
+	{
+		delivered.thenRun(task);
+	}
+
+	// Time from the start of the broadcast until the last client received it (-1 if still in progress)
+	public long getDeliveryTimeNanos()
+	{
+		return deliveryTime;
+	}
+}
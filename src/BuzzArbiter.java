@@ -0,0 +1,194 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Lock-free arbitration of one round's buzzes: buzzes are kept in arrival order with when each was sent (estimated on
+// the server's clock), and the earliest sent buzz wins so players on slower links aren't always beaten
+class BuzzArbiter
+{
+	// Returned when nobody has buzzed
+	public static final int NO_BUZZ = -1;
+
+	// Client IDs must be below this
+	private final int capacity;
+
+	// When the round's first buzz arrived (System.nanoTime())
+	private volatile long firstBuzzTime;
+
+	// Estimated send time of each client's buzz and where it arrived in the order, indexed by client ID
+	private final AtomicLongArray sendTimes;
+	private final AtomicIntegerArray positions;
+
+	// Winner so far: the earliest sent buzz, ties going to the earlier arrival (kept up to date by every buzz)
+	private final AtomicInteger firstBuzz;
+
+	// One bit per client ID: who has buzzed this round, and who has left the game
+	private final AtomicLongArray buzzed;
+	private final AtomicLongArray removed;
+
+	// Client IDs in the order their buzzes arrived (0 marks a slot that hasn't been written yet)
+	private final AtomicIntegerArray order;
+	private final AtomicInteger numBuzzes;
+
+	public BuzzArbiter(int capacity)
+	{
+		this.capacity = capacity;
+
+		sendTimes = new AtomicLongArray(capacity);
+		positions = new AtomicIntegerArray(capacity);
+		firstBuzz = new AtomicInteger(NO_BUZZ);
+		buzzed = new AtomicLongArray((capacity + 63) / 64);
+		removed = new AtomicLongArray((capacity + 63) / 64);
+		order = new AtomicIntegerArray(capacity);
+		numBuzzes = new AtomicInteger(0);
+	}
+
+	// Record a buzz and when it was sent, returns false if the ID is invalid or the client already buzzed this round
+	public boolean buzz(int clientID, long sendTime)
+	{
+		if(clientID <= 0 || clientID >= capacity)
+			return false;
+
+		// Only a client's first buzz of the round counts
+		if(!setBit(buzzed, clientID))
+			return false;
+
+		// Every client buzzes at most once per round, so the slot is always in range
+		int position = numBuzzes.getAndIncrement();
+		if(position == 0)
+			firstBuzzTime = System.nanoTime();
+
+		// The send time is written before the buzz is published in the order or as the winner
+		sendTimes.set(clientID, sendTime);
+		positions.set(clientID, position);
+		order.set(position, clientID);
+
+		// Take over as the winner if this buzz was sent earlier than the current one
+		while(true)
+		{
+			int current = firstBuzz.get();
+
+			if(current != NO_BUZZ && !isEarlier(clientID, current))
+				break;
+
+			if(firstBuzz.compareAndSet(current, clientID))
+				break;
+		}
+
+		return true;
+	}
+
+	// Return the winner of the round: the earliest sent buzz from a client that's still here, ties go to the earlier arrival
+	public int getFirstBuzz()
+	{
+		int winner = firstBuzz.get();
+
+		if(winner == NO_BUZZ || !isBitSet(removed, winner))
+			return winner;
+
+		// Winner left, so look through the other buzzes for the earliest one from a client that's still here
+		int first = NO_BUZZ;
+
+		int count = getNumBuzzes();
+		for(int i = 0; i < count; i++)
+		{
+			int clientID = order.get(i);
+
+			if(clientID == 0 || isBitSet(removed, clientID))
+				continue;
+
+			if(first == NO_BUZZ || isEarlier(clientID, first))
+				first = clientID;
+		}
+
+		return first;
+	}
+
+	// Whether one client's buzz beats another's: sent earlier, or sent at the same time and arrived first
+	private boolean isEarlier(int clientID, int otherClientID)
+	{
+		long difference = sendTimes.get(clientID) - sendTimes.get(otherClientID);
+
+		return difference < 0 || (difference == 0 && positions.get(clientID) < positions.get(otherClientID));
+	}
+
+	// Return when the round's first buzz arrived (System.nanoTime(), only meaningful once someone has buzzed)
+	public long getFirstBuzzTime()
+	{
+		return firstBuzzTime;
+	}
+
+	// Return the number of clients that buzzed this round
+	public int getNumBuzzes()
+	{
+		return Math.min(numBuzzes.get(), capacity);
+	}
+
+	// Return the client whose buzz arrived at the given position this round
+	public int getBuzz(int position)
+	{
+		return order.get(position);
+	}
+
+	// Ignore a client from now on (it left the game)
+	public void removeClient(int clientID)
+	{
+		if(0 < clientID && clientID < capacity)
+			setBit(removed, clientID);
+	}
+
+	// Start a new round, only touching the slots used by the last one
+	public void reset()
+	{
+		int count = getNumBuzzes();
+		for(int i = 0; i < count; i++)
+		{
+			int clientID = order.getAndSet(i, 0);
+
+			if(clientID != 0)
+				clearBit(buzzed, clientID);
+		}
+
+		numBuzzes.set(0);
+		firstBuzz.set(NO_BUZZ);
+	}
+
+	// Atomically set a bit, returns false if it was already set
+	private static boolean setBit(AtomicLongArray bits, int index)
+	{
+		int word = index >>> 6;
+		long mask = 1L << (index & 63);
+
+		while(true)
+		{
+			long current = bits.get(word);
+
+			if((current & mask) != 0)
+				return false;
+
+			if(bits.compareAndSet(word, current, current | mask))
+				return true;
+		}
+	}
+
+	// Atomically clear a bit
+	private static void clearBit(AtomicLongArray bits, int index)
+	{
+		int word = index >>> 6;
+		long mask = 1L << (index & 63);
+
+		while(true)
+		{
+			long current = bits.get(word);
+
+			if(bits.compareAndSet(word, current, current & ~mask))
+				return;
+		}
+	}
+
+	// Check whether a bit is set
+	private static boolean isBitSet(AtomicLongArray bits, int index)
+	{
+		return (bits.get(index >>> 6) & (1L << (index & 63))) != 0;
+	}
+}
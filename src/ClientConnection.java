@@ -0,0 +1,811 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Connection for a single client, driven by an EventLoop or by its own blocking thread
+class ClientConnection
+{
+	// When a queued message is written
+	static final int FLUSH_NOW = 0;			// Time-critical (questions, acks, pings), written straight away along with anything queued before it
+	static final int FLUSH_BATCHED = 1;		// Held until the room finishes its phase step or something time-critical follows
+
+	// What happens once a client has more than Server.OUTBOUND_HIGH_WATER bytes queued
+	static final int DROP_STALE = 0;		// Queued pings and standings are replaced by newer ones instead of piling up
+	static final int MARK_LAGGING = 1;		// As DROP_STALE, and the client is marked lagging until it catches up
+	static final int DISCONNECT = 2;
+
+	// Set with -Dquiz.slowClientPolicy=drop|lag|disconnect, clients past Server.OUTBOUND_LIMIT are always disconnected
+	static final int SLOW_CLIENT_POLICY = parseSlowClientPolicy(System.getProperty("quiz.slowClientPolicy", "lag"));
+
+	// Most buffers handed to one gathering write
+	private static final int MAX_GATHER = 64;
+
+	// Socket writes and the messages they carried, across every client
+	private static final LongAdder numSocketWrites = new LongAdder();
+	private static final LongAdder numMessagesWritten = new LongAdder();
+
+	// How often each slow client policy was applied, and the clients lagging right now
+	private static final LongAdder numStaleDropped = new LongAdder();
+	private static final LongAdder numMarkedLagging = new LongAdder();
+	private static final LongAdder numSlowDisconnects = new LongAdder();
+	private static final AtomicInteger numLagging = new AtomicInteger();
+
+	// TCP
+	private final SocketChannel channel;
+	private final EventLoop eventLoop;
+	private SelectionKey key;
+	private final RoomManager roomManager;
+
+	// Room this client joined and its ID there (set once the client's hello has been accepted)
+	private volatile GameRoom room;
+	private volatile int clientID;
+
+	// Client info
+	private volatile boolean isKilled;
+	private volatile String userAnswer;
+	private int score;
+
+	// Joined the room's multicast group, so questions only need announcing over TCP
+	private volatile boolean subscribed;
+
+	// Round trip time and clock offset, used to order this client's buzzes by when they were sent
+	private final ClockSync clockSync;
+
+	// Frames waiting to be written
+	private final ArrayDeque<OutboundMessage> outbound;
+	private boolean flushScheduled;
+	private boolean closeWhenFlushed;
+
+	// Bytes in the outbound queue, and whether the client has fallen behind or is being disconnected for it
+	private long outboundBytes;
+	private boolean lagging;
+	private boolean evicting;
+
+	// The messages in the current gathering write and their buffers (only touched by the writer)
+	private final OutboundMessage[] gatheredMessages;
+	private final ByteBuffer[] gatheredBuffers;
+	private int numGatheredBuffers;
+
+	// Guards the outbound queue (a lock rather than synchronized so virtual threads don't pin during writes)
+	private final ReentrantLock writeLock;
+
+	// Incoming bytes that haven't formed a full frame yet
+	private ByteBuffer inbound;
+	private boolean helloReceived;
+
+	public ClientConnection(SocketChannel channel, EventLoop eventLoop, RoomManager roomManager)
+	{
+		this.channel = channel;
+		this.eventLoop = eventLoop;
+		this.roomManager = roomManager;
+		room = null;
+		clientID = 0;
+
+		// Initial info for client
+		isKilled = false;
+		userAnswer = null;
+		score = 0;
+		subscribed = false;
+		clockSync = new ClockSync();
+
+		outbound = new ArrayDeque<OutboundMessage>();
+		flushScheduled = false;
+		closeWhenFlushed = false;
+		outboundBytes = 0;
+		lagging = false;
+		evicting = false;
+		gatheredMessages = new OutboundMessage[MAX_GATHER];
+		gatheredBuffers = new ByteBuffer[MAX_GATHER];
+		writeLock = new ReentrantLock();
+		inbound = ByteBuffer.allocate(256);
+		helloReceived = false;
+	}
+
+	// Return clientID
+	public int getClientID()
+	{
+		return clientID;
+	}
+
+	// Return the room this client is playing in (null until its hello has been accepted)
+	public GameRoom getRoom()
+	{
+		return room;
+	}
+
+	// Called by the room when it accepts this client, with the score it had before a restart (0 for a new player)
+	void joinRoom(GameRoom room, int clientID, int score)
+	{
+		this.room = room;
+		this.clientID = clientID;
+		this.score = score;
+	}
+
+	// Return this client's clock sync
+	public ClockSync getClockSync()
+	{
+		return clockSync;
+	}
+
+	// Return whether this client receives questions through the multicast group
+	public boolean isSubscribed()
+	{
+		return subscribed;
+	}
+
+	// Return whether this client has been killed
+	public boolean isKilled()
+	{
+		return isKilled;
+	}
+
+	// Set the key assigned by the event loop
+	void setSelectionKey(SelectionKey key)
+	{
+		this.key = key;
+	}
+
+	// Read the slow client policy setting
+	private static int parseSlowClientPolicy(String policy)
+	{
+		if(policy.equalsIgnoreCase("drop"))
+			return DROP_STALE;
+
+		if(policy.equalsIgnoreCase("disconnect"))
+			return DISCONNECT;
+
+		if(!policy.equalsIgnoreCase("lag"))
+			System.err.println("Unknown slow client policy '" + policy + "'. Using lag");
+
+		return MARK_LAGGING;
+	}
+
+	// Number of socket writes to clients, and the messages they carried
+	public static long getNumSocketWrites()
+	{
+		return numSocketWrites.sum();
+	}
+
+	public static long getNumMessagesWritten()
+	{
+		return numMessagesWritten.sum();
+	}
+
+	// Stale messages dropped, times clients were marked lagging, and clients disconnected for not keeping up
+	public static long getNumStaleDropped()
+	{
+		return numStaleDropped.sum();
+	}
+
+	public static long getNumMarkedLagging()
+	{
+		return numMarkedLagging.sum();
+	}
+
+	public static long getNumSlowDisconnects()
+	{
+		return numSlowDisconnects.sum();
+	}
+
+	// Clients currently marked lagging
+	public static int getNumLagging()
+	{
+		return numLagging.get();
+	}
+
+	// Write a frame to client straight away
+	public void writeFrameToClient(ByteBuffer frame)
+	{
+		writeFrameToClient(frame, null, FLUSH_NOW);
+	}
+
+	// Write a frame to client as part of a broadcast (shared frames are viewed, not copied)
+	public void writeFrameToClient(ByteBuffer frame, Broadcast broadcast, int flushPolicy)
+	{
+		writeLock.lock();
+		try
+		{
+			queue(new ByteBuffer[] {frame.duplicate()}, broadcast, flushPolicy);
+		}
+		finally
+		{
+			writeLock.unlock();
+		}
+	}
+
+	// Write two shared frames to client as part of a broadcast, in one gathering write
+	// Only used for a phase's opening frame and its countdown, which are always time-critical
+	public void writeFramesToClient(ByteBuffer first, ByteBuffer second, Broadcast broadcast)
+	{
+		writeLock.lock();
+		try
+		{
+			queue(new ByteBuffer[] {first.duplicate(), second.duplicate()}, broadcast, FLUSH_NOW);
+		}
+		finally
+		{
+			writeLock.unlock();
+		}
+	}
+
+	// Tell the client why it can't play, then close the connection once the reason has been written
+	private void refuse(String reason)
+	{
+		System.out.println("Refusing connection: " + reason);
+
+		writeLock.lock();
+		try
+		{
+			closeWhenFlushed = true;
+			queue(new ByteBuffer[] {Protocol.frame(Protocol.REFUSED, reason.getBytes(StandardCharsets.UTF_8))}, null, FLUSH_NOW);
+		}
+		finally
+		{
+			writeLock.unlock();
+		}
+	}
+
+	// Write a frame made of a part for this client and a part shared with other clients, in one gathering write
+	public void writeFrameToClient(ByteBuffer head, ByteBuffer shared, Broadcast broadcast, int flushPolicy)
+	{
+		writeLock.lock();
+		try
+		{
+			queue(new ByteBuffer[] {head, shared.duplicate()}, broadcast, flushPolicy);
+		}
+		finally
+		{
+			writeLock.unlock();
+		}
+	}
+
+	// Write any batched messages now that the room has finished its phase step
+	public void flushBatched()
+	{
+		writeLock.lock();
+		try
+		{
+			if(!outbound.isEmpty())
+				scheduleWrite();
+		}
+		finally
+		{
+			writeLock.unlock();
+		}
+	}
+
+	// Queue buffers to be written together with a single gathering write (called with writeLock held)
+	private void queue(ByteBuffer[] data, Broadcast broadcast, int flushPolicy)
+	{
+		if(broadcast != null)
+			broadcast.addClient();
+
+		OutboundMessage message = new OutboundMessage(data, broadcast);
+
+		// The client isn't keeping up, the queue never grows past what the policy allows
+		if(!isKilled && !evicting && outboundBytes + message.size > Server.OUTBOUND_HIGH_WATER)
+			onSlowClient(message);
+
+		if(isKilled || evicting)
+		{
+			message.delivered();
+			return;
+		}
+
+		outbound.add(message);
+		outboundBytes += message.size;
+
+		if(flushPolicy == FLUSH_NOW)
+			scheduleWrite();
+	}
+
+	// Apply the slow client policy before a message goes past the high-water mark (called with writeLock held)
+	private void onSlowClient(OutboundMessage message)
+	{
+		if(SLOW_CLIENT_POLICY == DISCONNECT || outboundBytes + message.size > Server.OUTBOUND_LIMIT)
+		{
+			evict();
+			return;
+		}
+
+		dropStale(message.getOpcode());
+
+		if(SLOW_CLIENT_POLICY == MARK_LAGGING && !lagging)
+		{
+			lagging = true;
+			numLagging.incrementAndGet();
+			numMarkedLagging.increment();
+			System.out.println("Client " + clientID + " is lagging, " + outboundBytes + " bytes waiting to be written");
+		}
+	}
+
+	// Drop queued messages of a kind the new message makes stale, unless the writer has them (called with writeLock held)
+	private void dropStale(byte opcode)
+	{
+		// Only a newer PING or LEADERBOARD replaces an older one, everything else has to reach the client
+		if(opcode != Protocol.PING && opcode != Protocol.LEADERBOARD)
+			return;
+
+		Iterator<OutboundMessage> iterator = outbound.iterator();
+		while(iterator.hasNext())
+		{
+			OutboundMessage queued = iterator.next();
+
+			if(!queued.inFlight && queued.getOpcode() == opcode)
+			{
+				iterator.remove();
+				outboundBytes -= queued.size;
+				queued.delivered();
+				numStaleDropped.increment();
+			}
+		}
+	}
+
+	// Disconnect a client that has fallen too far behind, off the thread that's queueing for it (called with writeLock held)
+	private void evict()
+	{
+		evicting = true;
+		numSlowDisconnects.increment();
+		System.out.println("Disconnecting Client " + clientID + ", " + outboundBytes + " bytes waiting to be written");
+
+		if(eventLoop != null)
+			eventLoop.execute(this::close);
+		else
+			ServerThreads.getWriterExecutor().execute(this::close);
+	}
+
+	// Start the writer unless it's already draining this client's queue (called with writeLock held)
+	private void scheduleWrite()
+	{
+		if(!flushScheduled)
+		{
+			flushScheduled = true;
+
+			if(eventLoop != null)
+				eventLoop.execute(this::flush);
+			else
+				ServerThreads.getWriterExecutor().execute(this::flush);
+		}
+	}
+
+	// Gather the buffers of the queued messages, up to MAX_GATHER of them, returns the number of messages (called with writeLock held)
+	private int gather()
+	{
+		int numMessages = 0;
+		int numBuffers = 0;
+
+		for(OutboundMessage message : outbound)
+		{
+			if(numBuffers + message.data.length > MAX_GATHER)
+				break;
+
+			message.inFlight = true;
+			gatheredMessages[numMessages++] = message;
+
+			for(ByteBuffer buffer : message.data)
+				gatheredBuffers[numBuffers++] = buffer;
+		}
+
+		numGatheredBuffers = numBuffers;
+		return numMessages;
+	}
+
+	// Write queued messages to the socket, as many as fit in one gathering write at a time, runs on the event loop or a writer thread
+	private void flush()
+	{
+		try
+		{
+			while(true)
+			{
+				int numMessages;
+				boolean refused = false;
+
+				writeLock.lock();
+				try
+				{
+					numMessages = gather();
+
+					// Queue drained
+					if(numMessages == 0)
+					{
+						flushScheduled = false;
+						refused = closeWhenFlushed;
+
+						setInterest(SelectionKey.OP_READ);
+					}
+				}
+				finally
+				{
+					writeLock.unlock();
+				}
+
+				if(numMessages == 0)
+				{
+					if(refused)
+						close();
+
+					return;
+				}
+
+				OutboundMessage last = gatheredMessages[numMessages - 1];
+
+				// Client has its own threads, so just block until the socket takes everything
+				if(eventLoop == null)
+				{
+					while(last.hasRemaining())
+					{
+						channel.write(gatheredBuffers, 0, numGatheredBuffers);
+						numSocketWrites.increment();
+					}
+				}
+
+				else
+				{
+					channel.write(gatheredBuffers, 0, numGatheredBuffers);
+					numSocketWrites.increment();
+				}
+
+				// Take every message the socket finished off the queue
+				int numWritten = 0;
+
+				writeLock.lock();
+				try
+				{
+					while(numWritten < numMessages && !gatheredMessages[numWritten].hasRemaining())
+					{
+						// Client was closed mid-write and the messages have already been accounted for
+						if(outbound.peek() != gatheredMessages[numWritten])
+							return;
+
+						outbound.poll();
+						outboundBytes -= gatheredMessages[numWritten].size;
+						numWritten++;
+					}
+
+					// Caught up
+					if(lagging && outboundBytes <= Server.OUTBOUND_HIGH_WATER / 2)
+					{
+						lagging = false;
+						numLagging.decrementAndGet();
+						System.out.println("Client " + clientID + " has caught up");
+					}
+				}
+				finally
+				{
+					writeLock.unlock();
+				}
+
+				numMessagesWritten.add(numWritten);
+				for(int i = 0; i < numWritten; i++)
+					gatheredMessages[i].delivered();
+
+				// Socket is full, let the selector tell us when it drains
+				if(numWritten < numMessages)
+				{
+					setInterest(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+
+					return;
+				}
+			}
+		}
+
+		catch(IOException e)
+		{
+			System.err.println("ERROR writing to client " + clientID + "... Socket is closed");
+			close();
+		}
+	}
+
+	// Called by the event loop when the socket can take more data
+	void onWritable()
+	{
+		flush();
+	}
+
+	// Blocking read loop for clients that have their own thread
+	void readLoop()
+	{
+		ByteBuffer readBuffer = ByteBuffer.allocate(1024);
+
+		while(!isKilled)
+			onReadable(readBuffer);
+	}
+
+	// Called when the client has sent data
+	void onReadable(ByteBuffer readBuffer)
+	{
+		try
+		{
+			readBuffer.clear();
+			int bytesRead = channel.read(readBuffer);
+
+			// Client closed the connection
+			if(bytesRead == -1)
+			{
+				System.out.println("Client " + clientID + " disconnected");
+				close();
+				return;
+			}
+
+			readBuffer.flip();
+
+			// Grow the inbound buffer if this read doesn't fit
+			if(inbound.remaining() < readBuffer.remaining())
+			{
+				ByteBuffer larger = ByteBuffer.allocate(inbound.position() + readBuffer.remaining());
+				inbound.flip();
+				larger.put(inbound);
+				inbound = larger;
+			}
+
+			inbound.put(readBuffer);
+			decodeInbound();
+		}
+
+		catch(IOException e)
+		{
+			// A blocking read fails once the connection is closed from another thread
+			if(!isKilled)
+				System.err.println("ERROR reading from client " + clientID + ": " + e.getMessage());
+
+			close();
+		}
+	}
+
+	// Decode every complete frame the client has sent
+	private void decodeInbound() throws IOException
+	{
+		inbound.flip();
+
+		int frameSize;
+		while((frameSize = Protocol.completeFrameSize(inbound)) != -1)
+		{
+			int frameEnd = inbound.position() + frameSize;
+			byte opcode = inbound.get();
+
+			// Skip the length, the payload runs to the end of the frame
+			inbound.position(inbound.position() + 2);
+			ByteBuffer payload = inbound.slice();
+			payload.limit(frameSize - Protocol.HEADER_SIZE);
+			inbound.position(frameEnd);
+
+			handleFrame(opcode, payload);
+
+			if(isKilled)
+				return;
+		}
+
+		inbound.compact();
+	}
+
+	// Server receives incoming TCP message from client
+	private void handleFrame(byte opcode, ByteBuffer payload) throws IOException
+	{
+		// Client is being refused, ignore anything it sends until it's closed
+		if(closeWhenFlushed)
+			return;
+
+		// Every client must say which protocol version it speaks and which room it wants first
+		if(!helloReceived)
+		{
+			if(opcode != Protocol.CLIENT_HELLO || payload.remaining() < 5)
+				throw new IOException("Connection didn't send a hello");
+
+			byte version = payload.get();
+			if(version != Protocol.VERSION)
+				throw new IOException("Connection speaks protocol version " + version
+						+ ", server speaks " + Protocol.VERSION);
+
+			helloReceived = true;
+
+			int roomID = payload.getInt();
+			GameRoom requested = roomManager.getRoom(roomID);
+
+			// A player rejoining a room restored after a restart asks for its old ID back
+			int resumeClientID = (payload.remaining() >= 4) ? payload.getInt() : 0;
+
+			if(requested == null)
+				refuse("Room " + roomID + " does not exist");
+
+			else if(!requested.addClient(this, resumeClientID))
+				refuse("Room " + roomID + " is not accepting players");
+		}
+
+		// Client answered a PING
+		else if(opcode == Protocol.PONG)
+		{
+			long receiveTime = System.nanoTime();
+
+			if(payload.remaining() < 16)
+				throw new IOException("Short PONG from client " + clientID);
+
+			long rtt = clockSync.sample(payload.getLong(), payload.getLong(), receiveTime);
+			if(rtt > 0)
+				ServerMetrics.CLIENT_RTT.record(rtt);
+		}
+
+		// Client joined the multicast group (ignored if the server doesn't multicast)
+		else if(opcode == Protocol.SUBSCRIBE)
+			subscribed = (room != null && room.multicastsQuestions());
+
+		// Client missed a multicast question
+		else if(opcode == Protocol.REPAIR)
+		{
+			if(payload.remaining() < 4)
+				throw new IOException("Short REPAIR from client " + clientID);
+
+			if(subscribed)
+				room.repairQuestion(this, payload.getInt());
+		}
+
+		// Client requests kill
+		else if(opcode == Protocol.KILL)
+		{
+			System.out.println("Killing Client " + clientID + "...");
+			close();
+		}
+
+		// Client submitted answer (or ran out of time)
+		else if(opcode == Protocol.ANSWER || opcode == Protocol.NO_ANSWER)
+		{
+			// Obtain user's answer
+			userAnswer = (opcode == Protocol.ANSWER) ? Protocol.decodeString(payload) : "";
+
+			// Alert the room that answer has been received
+			room.answerReceived(this);
+		}
+
+		else
+			throw new IOException("Unexpected opcode " + opcode + " from client " + clientID);
+	}
+
+	// Change what the selector watches this client for, close() on another thread can cancel the key at any point
+	private void setInterest(int interestOps)
+	{
+		try
+		{
+			if(key != null && key.isValid())
+				key.interestOps(interestOps);
+		}
+
+		catch(CancelledKeyException e)
+		{
+			// Closed, nothing left to watch for
+		}
+	}
+
+	// Close the connection and remove this client from the game
+	public void close()
+	{
+		writeLock.lock();
+		try
+		{
+			if(isKilled)
+				return;
+
+			isKilled = true;
+
+			// Nothing else will be written, so don't hold up any broadcasts
+			OutboundMessage message;
+			while((message = outbound.poll()) != null)
+				message.delivered();
+
+			outboundBytes = 0;
+			if(lagging)
+			{
+				lagging = false;
+				numLagging.decrementAndGet();
+			}
+		}
+		finally
+		{
+			writeLock.unlock();
+		}
+
+		if(key != null)
+			key.cancel();
+
+		try
+		{
+			channel.close();
+		}
+
+		catch(IOException e)
+		{
+			System.err.println("ERROR closing client " + clientID);
+		}
+
+		if(room != null)
+			room.removeClient(this);
+	}
+
+	// Get answer if this client won the poll
+	public String getClientAnswer()
+	{
+		String answer = userAnswer;
+
+		// Reset client's answer
+		userAnswer = null;
+
+		// Return client's answer
+		return answer;
+	}
+
+	// Update this client's score and its place on the room's leaderboard
+	public void updateClientScore(byte status)
+	{
+		int oldScore = score;
+
+		// Client answered correctly
+		if(status == Protocol.CORRECT)
+			score += 10;
+
+		// Client answered incorrectly
+		else if(status == Protocol.INCORRECT)
+			score -= 10;
+
+		// Client didn't answer after polling
+		else if(status == Protocol.PENALTY)
+			score -= 20;
+
+		if(room != null)
+			room.getLeaderboard().move(clientID, oldScore, score);
+	}
+
+	// Return current score of this client
+	public int getClientScore()
+	{
+		return score;
+	}
+
+	// Frames waiting to be written, along with the broadcast they belong to
+	private static class OutboundMessage
+	{
+		final ByteBuffer[] data;
+		final Broadcast broadcast;
+		final int size;
+
+		// Handed to a write, so it can't be dropped even if only part of it was written (guarded by writeLock)
+		boolean inFlight;
+
+		OutboundMessage(ByteBuffer[] data, Broadcast broadcast)
+		{
+			this.data = data;
+			this.broadcast = broadcast;
+
+			int bytes = 0;
+			for(ByteBuffer buffer : data)
+				bytes += buffer.remaining();
+
+			size = bytes;
+			inFlight = false;
+		}
+
+		// Opcode of the frame this message starts with
+		byte getOpcode()
+		{
+			return data[0].get(data[0].position());
+		}
+
+		// Buffers are written in order, so the message is done once the last one is
+		boolean hasRemaining()
+		{
+			return data[data.length - 1].hasRemaining();
+		}
+
+		// The socket has taken the whole message
+		void delivered()
+		{
+			if(broadcast != null)
+				broadcast.clientDelivered();
+		}
+	}
+}
@@ -0,0 +1,117 @@
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// A room's clients indexed by client ID, lookups are O(1) and iteration is safe while clients join and leave
+// IDs are handed out densely from 1, so iteration only walks up to the highest ID that has been used
+class ClientRegistry implements Iterable<ClientConnection>
+{
+	private final AtomicReferenceArray<ClientConnection> clients;
+	private final AtomicInteger size;
+	private volatile int highestClientID;
+
+	public ClientRegistry(int capacity)
+	{
+		clients = new AtomicReferenceArray<ClientConnection>(capacity);
+		size = new AtomicInteger(0);
+		highestClientID = 0;
+	}
+
+	// Add a client under its ID, returns false if the ID is out of range or already taken
+	public boolean add(ClientConnection client)
+	{
+		int clientID = client.getClientID();
+
+		if(clientID <= 0 || clientID >= clients.length() || !clients.compareAndSet(clientID, null, client))
+			return false;
+
+		size.incrementAndGet();
+
+		// Only written by joining clients, which the room serializes
+		if(clientID > highestClientID)
+			highestClientID = clientID;
+
+		return true;
+	}
+
+	// Remove a client, returns false if it wasn't registered
+	public boolean remove(ClientConnection client)
+	{
+		int clientID = client.getClientID();
+
+		if(clientID <= 0 || clientID >= clients.length() || !clients.compareAndSet(clientID, client, null))
+			return false;
+
+		size.decrementAndGet();
+		return true;
+	}
+
+	// Look up a client by ID, returns null if there's no such client
+	public ClientConnection get(int clientID)
+	{
+		if(clientID <= 0 || clientID >= clients.length())
+			return null;
+
+		return clients.get(clientID);
+	}
+
+	// Highest ID that has been registered so far (never goes down)
+	public int getHighestClientID()
+	{
+		return highestClientID;
+	}
+
+	// Number of registered clients
+	public int size()
+	{
+		return size.get();
+	}
+
+	public boolean isEmpty()
+	{
+		return size.get() == 0;
+	}
+
+	// Walks the clients in ID order, sees clients that join or leave during the walk at most once
+	@Override
+	public Iterator<ClientConnection> iterator()
+	{
+		return new Iterator<ClientConnection>()
+		{
+			private final int end = highestClientID;
+			private int clientID = 0;
+			private ClientConnection next = advance();
+
+			private ClientConnection advance()
+			{
+				while(clientID < end)
+				{
+					ClientConnection client = clients.get(++clientID);
+
+					if(client != null)
+						return client;
+				}
+
+				return null;
+			}
+
+			@Override
+			public boolean hasNext()
+			{
+				return next != null;
+			}
+
+			@Override
+			public ClientConnection next()
+			{
+				if(next == null)
+					throw new NoSuchElementException();
+
+				ClientConnection client = next;
+				next = advance();
+				return client;
+			}
+		};
+	}
+}
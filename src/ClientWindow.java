@@ -1,40 +1,69 @@
 import java.awt.Color;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.net.ConnectException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
 import java.net.Socket;
 import java.net.UnknownHostException;
-import java.util.TimerTask;
-import java.util.Scanner;
-import java.util.Timer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import javax.swing.*;
 
 public class ClientWindow implements ActionListener
 {
+	// Countdown phases, the server keeps the deadlines and sends how long each phase lasts
+	private static final int IDLE = 0;			// No countdown running
+	private static final int POLLING = 1;		// Question shown, polling ends when it runs out
+	private static final int ANSWERING = 2;		// This client had the fastest poll and can submit until it runs out
+	private static final int WATCHING = 3;		// Another client is answering
+
+	// How long an announced question's multicast datagram may lag behind the announcement before asking for it over TCP
+	private static final long REPAIR_WAIT_MILLIS = 100;
+
+	// How often and how many times to try getting back into the room after losing the server, long enough for it to restart
+	private static final long RECONNECT_INTERVAL_MILLIS = 1000;
+	private static final int RECONNECT_ATTEMPTS = 30;
+
 	// Server info
 	private String hostIP;
 	private InetAddress serverAddress;
 	int portNumber;
+	private int roomID;
 
 	// Sockets
 	private Socket tcpSocket;
 	private DatagramSocket udpSocket;
+	private DatagramPacket buzzPacket;
+
+	// Questions multicast to this client's room, waiting for the server to announce them (null if the server doesn't multicast)
+	private InetSocketAddress multicastGroup;
+	private MulticastSocket multicastSocket;
+	private final LinkedBlockingQueue<ByteBuffer> multicastQuestions = new LinkedBlockingQueue<ByteBuffer>();
 
-	// Connections
-	private ObjectOutputStream writer;
-	private ObjectInputStream reader;
+	// Connections, the writer is only used on the sender thread
+	private DataOutputStream writer;
+	private DataInputStream reader;
 
 	// Buttons
 	private JButton poll;
@@ -48,17 +77,45 @@ public class ClientWindow implements ActionListener
 	private JLabel question;
 	private JLabel timer;
 	private JLabel scoreLabel;
+	private JLabel rankLabel;
+	private JLabel leadersLabel;
 
 	// Other
-	private TimerTask clock;	
 	private JFrame window;
 	private int clientID;
-	private String userAnswer;
-	private int score;
+	private volatile int score;
+
+	// UI changes made by the network and clock threads, run on the EDT in batches
+	private final ConcurrentLinkedQueue<Runnable> uiUpdates = new ConcurrentLinkedQueue<Runnable>();
+	private final AtomicBoolean uiUpdatesScheduled = new AtomicBoolean(false);
+
+	// Writes to the server happen here so the EDT never waits on a socket, in the order they were made
+	private final ExecutorService sender = Executors.newSingleThreadExecutor(task ->
+	{
+		Thread thread = new Thread(task, "ClientSender");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	// Drives every countdown with one tick, a new phase cancels the tick of the one before it
+	private final ScheduledExecutorService clock = Executors.newSingleThreadScheduledExecutor(task ->
+	{
+		Thread thread = new Thread(task, "ClientClock");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	// Phase the next COUNTDOWN from the server is for, set by the frame before it (only touched on the reader thread)
+	private int nextCountdownPhase = IDLE;
+
+	// Countdown state, only touched on the clock thread
+	private int countdownPhase = IDLE;
+	private int secondsLeft;
+	private ScheduledFuture<?> tick;
 
 	// write setters and getters as you need
 
-	public ClientWindow() throws FileNotFoundException
+	public ClientWindow()
 	{
 		// Initial user prompt
 		JOptionPane.showMessageDialog(window, "This is a trivia game", 
@@ -133,20 +190,61 @@ public class ClientWindow implements ActionListener
 		}
 		System.out.println("Valid port number entered: " + portNumber);
 
+		// Prevent user from continuing without providing a valid room number
+		while(true) 
+		{
+			// Capture input room number from user
+			String room = JOptionPane.showInputDialog(window, 
+					"Please enter the room number of the game to join:", "1");
+
+			// Trim spaces from input
+			if(room != null)
+				room = room.trim();
+
+			// User clicked the "Cancel" button, close the entire application
+			else    
+				System.exit(0);
+
+			// Valid room number provided, break out of the loop
+			if(room.matches("[0-9]{1,9}") && Integer.valueOf(room) > 0)
+			{
+				roomID = Integer.valueOf(room);
+				break;
+			}
+
+			// Invalid room number provided, prompt the user again
+			else
+				JOptionPane.showMessageDialog(window, "Missing or invalid room number. Please enter a positive number.",
+						"Invalid Room Number", JOptionPane.ERROR_MESSAGE);
+		}
+		System.out.println("Valid room number entered: " + roomID);
+
 		// Attempt TCP connection
 		try 
 		{
-			// Establish TCP connection
-			tcpSocket = new Socket(hostIP, portNumber);
+			// Establish TCP connection and receive clientID from server
+			Protocol.Frame hello = connect(0);
 			System.out.println("Connection accepted");
-
-			// Initialize reader and writer
-			writer = new ObjectOutputStream(tcpSocket.getOutputStream());
-			reader = new ObjectInputStream(tcpSocket.getInputStream());
-
-			// Receive clientID from server
-			clientID = reader.readInt();
+			
+			// Room doesn't exist or can't take more players
+			if(hello.getOpcode() == Protocol.REFUSED)
+			{
+				JOptionPane.showMessageDialog(window, Protocol.decodeString(hello.getPayload()), 
+						"Can't Join Room", JOptionPane.ERROR_MESSAGE);
+				System.exit(0);
+			}
+			
+			if(hello.getOpcode() != Protocol.HELLO || hello.getPayload().get() != Protocol.VERSION)
+			{
+				JOptionPane.showMessageDialog(window, "The server is running a different version of the game.", 
+						"Version Mismatch", JOptionPane.ERROR_MESSAGE);
+				System.exit(0);
+			}
+			
+			clientID = hello.getPayload().getInt();
 			System.out.println("ClientID: " + clientID);
+			
+			multicastGroup = Protocol.multicastGroup(hello.getPayload());
 		}
 
 		// Connection could not be established
@@ -173,62 +271,67 @@ public class ClientWindow implements ActionListener
 
 			// Get the IP address of the server
 			serverAddress = InetAddress.getByName(hostIP);
+			
+			// Build the buzz datagram up front, only its send time changes
+			byte[] buzzData = Protocol.datagram(Protocol.BUZZ, roomID, clientID, 0);
+			buzzPacket = new DatagramPacket(buzzData, buzzData.length, serverAddress, portNumber);
 		} 
 		catch(Exception e) 
 		{
 			System.err.println("Error establishing UDP connection");
 			e.printStackTrace();
 		}
+		
+		// Receive questions through the server's multicast group, TCP still works if it can't be joined
+		if(multicastGroup != null)
+			joinMulticastGroup();
 
-		// Game window
-		window = new GameFrame();
+		// Build the game window on the EDT
+		try
+		{
+			SwingUtilities.invokeAndWait(this::createWindow);
+		}
+		catch(InterruptedException | InvocationTargetException e)
+		{
+			System.err.println("ERROR creating game window");
+			e.printStackTrace();
+			System.exit(0);
+		}
 
-		// Create temporary screen before game starts
-		waitingLabel = new JLabel("Waiting for game to start...");
-		window.add(waitingLabel);
-		waitingLabel.setBounds(10, 5, 350, 20);
+		// Read from the server on its own thread
+		new Thread(this::readFromServer, "ClientReader").start();
+	}
 
-		// Wait for server to start game
-		try 
-		{
-			Object input = reader.readObject();
+	// Connect to the server and ask to join the room, returns the server's reply
+	// A client that lost its connection passes its ID to get its place back, a new one passes 0
+	private Protocol.Frame connect(int resumeClientID) throws IOException
+	{
+		tcpSocket = new Socket(hostIP, portNumber);
 
-			// Game is already in progress
-			if(input instanceof String && input.equals("wait"))
-			{
-				System.out.println("Game in progress. Waiting for next question...");
-				waitingLabel.setText("Game in progress. Please wait for next question...");
+		// Initialize reader and writer
+		DataOutputStream connectionWriter = new DataOutputStream(new BufferedOutputStream(tcpSocket.getOutputStream()));
+		reader = new DataInputStream(new BufferedInputStream(tcpSocket.getInputStream()));
 
-				// Wait for next question from server
-				while((input = reader.readObject()) instanceof String)
-				{
-					if(input.equals("next"))
-					{
-						waitingLabel.setVisible(false);
-						break;
-					}					
-				}	
-			}
+		// Tell the server which protocol version this client speaks and which room to join
+		Protocol.writeFrame(connectionWriter, Protocol.CLIENT_HELLO,
+				(resumeClientID > 0) ? Protocol.clientHello(roomID, resumeClientID) : Protocol.clientHello(roomID));
 
-			// Server starts game
-			else if(input instanceof String && input.equals("start"))
-			{
-				System.out.println("Starting game...");
-				waitingLabel.setVisible(false);
-			}
-		} 
+		// Writes queued from here on go to the new connection
+		sender.execute(() -> writer = connectionWriter);
 
-		catch(ClassNotFoundException e) 
-		{
-			System.err.println("ERROR starting game: ClassNotFound");
-			e.printStackTrace();
-		} 
+		return Protocol.readFrame(reader);
+	}
 
-		// Client closed before game started
-		catch(IOException e) 
-		{
-			// Do nothing
-		}
+	// Create the game window and its components (runs on the EDT)
+	private void createWindow()
+	{
+		// Game window
+		window = new GameFrame();
+
+		// Temporary screen before game starts
+		waitingLabel = new JLabel("Waiting for game to start...");
+		window.add(waitingLabel);
+		waitingLabel.setBounds(10, 5, 350, 20);
 
 		// Label for alerting client of missing answer
 		alertLabel = new JLabel();
@@ -254,14 +357,9 @@ public class ClientWindow implements ActionListener
 			window.add(options[index]);
 			optionGroup.add(options[index]);
 		}
-		
-		userAnswer = "";
 
 		timer = new JLabel("TIMER");  // represents the countdown shown on the window
 		timer.setBounds(250, 250, 100, 20);
-		clock = new TimerCode(15, true, null);  // represents clocked task that should run after X seconds
-		Timer t = new Timer();  // event generator
-		t.schedule(clock, 0, 1000); // clock is called every second
 		window.add(timer);
 
 
@@ -269,8 +367,18 @@ public class ClientWindow implements ActionListener
 		scoreLabel.setBounds(50, 250, 100, 20);
 		window.add(scoreLabel);
 
+		rankLabel = new JLabel(); // this client's place, sent after every round
+		rankLabel.setBounds(50, 270, 150, 20);
+		window.add(rankLabel);
+
+		leadersLabel = new JLabel(); // top players, sent after every round
+		leadersLabel.setBounds(400, 180, 180, 120);
+		leadersLabel.setVerticalAlignment(SwingConstants.TOP);
+		window.add(leadersLabel);
+
 		poll = new JButton("Poll");  // button that use clicks/ like a buzzer
 		poll.setBounds(10, 300, 100, 20);
+		poll.setEnabled(false);  // enabled once the game starts
 		poll.addActionListener(this);  // calls actionPerformed of this class
 		window.add(poll);
 
@@ -279,212 +387,550 @@ public class ClientWindow implements ActionListener
 		submit.setEnabled(false);
 		submit.addActionListener(this);  // calls actionPerformed of this class
 		window.add(submit);
+	}
 
-		Object input;
-		String questionFileName = "./temp.txt";
+	// Join the multicast group on the interface that reaches the server, then ask the server to only announce questions
+	private void joinMulticastGroup()
+	{
+		try 
+		{
+			multicastSocket = new MulticastSocket(multicastGroup.getPort());
+			multicastSocket.joinGroup(multicastGroup, NetworkInterface.getByInetAddress(tcpSocket.getLocalAddress()));
+		} 
+		catch(IOException e) 
+		{
+			System.err.println("Can't join multicast group " + multicastGroup + ", receiving questions over TCP: " + e.getMessage());
+			return;
+		}
 		
-		// Continually read and display questions from server
-		try
+		Thread receiver = new Thread(this::receiveMulticast, "ClientMulticast");
+		receiver.setDaemon(true);
+		receiver.start();
+		
+		writeToServerTCP(Protocol.SUBSCRIBE, "");
+		System.out.println("Joined multicast group " + multicastGroup);
+	}
+
+	// Queue the multicast questions for this client's room until they're announced (runs on the multicast thread)
+	private void receiveMulticast()
+	{
+		DatagramPacket packet = new DatagramPacket(new byte[Protocol.MAX_MULTICAST_SIZE], Protocol.MAX_MULTICAST_SIZE);
+		
+		try 
+		{
+			while(true)
+			{
+				multicastSocket.receive(packet);
+				
+				// Every room shares the group
+				ByteBuffer datagram = ByteBuffer.wrap(packet.getData(), 0, packet.getLength());
+				if(datagram.remaining() < Protocol.MULTICAST_HEADER_SIZE || datagram.getInt(0) != roomID)
+					continue;
+				
+				multicastQuestions.add(ByteBuffer.wrap(packet.getData().clone(), 0, packet.getLength()));
+			}
+		} 
+		catch(IOException e) 
 		{
-			// While socket is still open
-			while((input = reader.readObject()) != null) 
+			System.err.println("Stopped receiving multicast questions: " + e.getMessage());
+		}
+	}
+
+	// Wait briefly for an announced question's datagram, older questions still queued are dropped (runs on the reader thread)
+	// Returns the QUESTION payload, or null if it hasn't arrived and has to be repaired over TCP
+	private ByteBuffer awaitMulticastQuestion(int questionNum)
+	{
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(REPAIR_WAIT_MILLIS);
+		
+		try 
+		{
+			ByteBuffer datagram;
+			while((datagram = multicastQuestions.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) != null)
 			{
-				// Process the file and display question
-				if(input instanceof Integer) 
-				{					
-					// Receive the file segment and client number from the server
-		            byte[] fileSegment = readFile(((Integer)input).intValue());
+				ByteBuffer question = Protocol.multicastQuestion(datagram, roomID, questionNum);
+				
+				if(question != null)
+					return question;
+			}
+		} 
+		catch(InterruptedException e) 
+		{
+			Thread.currentThread().interrupt();
+		}
+		
+		return null;
+	}
 
-		            // Write to file
-		            FileOutputStream fileWriter = new FileOutputStream(questionFileName);
-		            fileWriter.write(fileSegment);
-		            fileWriter.close();
+	// Read and decode messages from the server, changes to the window are handed to the EDT (runs on the reader thread)
+	private void readFromServer()
+	{
+		do
+		{
+			try 
+			{
+				playGame();
+				return;
+			}
 
-		            // Clear radio button selections
-		            this.optionGroup.clearSelection();
+			catch(IOException e) 
+			{
+				// Server closed the connection
+				// Try to get back into the room, or fall through to the alert below
+			}
+		}
+		while(reconnect());
 
-		            String[] questionInfo = new String[5];
-		            File tempFile = new File(questionFileName);
-					Scanner scanner = new Scanner (new FileInputStream(tempFile));
-					int index = 0;
+		// If server stops running
+		// Stop timer
+		clock.shutdownNow();
+		
+		postUIUpdate(() ->
+		{
+			// Show alert to user
+			JOptionPane.showMessageDialog(window, "Lost connection to server. Exiting game...", 
+					"Connection Terminated", JOptionPane.PLAIN_MESSAGE);
+			
+			// Exit game
+			System.exit(0);
+		});
+	}
 
-					// Read values from file
-					while(scanner.hasNext() && index < questionInfo.length)
-					{
-						questionInfo[index] = scanner.nextLine().trim();
-						index++;
-					}
+	// Wait for the game to start, or for the next question if it's under way, then play until it ends (runs on the reader thread)
+	private void playGame() throws IOException
+	{
+		// Wait for server to start game
+		byte opcode = readGameFrame().getOpcode();
 
-					// Display questions and answers from file
-					question.setText(questionInfo[0]);
-					for (int i = 0; i <= 3; i++)
-					{
-						options[i].setText(questionInfo[i + 1]);
-					}
+		// Game is already in progress
+		if(opcode == Protocol.WAIT)
+		{
+			System.out.println("Game in progress. Waiting for next question...");
+			postUIUpdate(() -> waitingLabel.setText("Game in progress. Please wait for next question..."));
 
-					clock = new TimerCode(15, true, null);
-					t.schedule(clock, 0, 1000); // clock is called every second
-				}
-				
-				else if(input instanceof String)
-				{										
-					// Ready client for next question
-					if(((String)input).equals("next"))
-					{
-						poll.setEnabled(true);
-						alertLabel.setVisible(false);
-						deleteFile(questionFileName);
-					}
+			// Wait for next question from server
+			while(readGameFrame().getOpcode() != Protocol.NEXT)
+			{
+				// Ignore the rest of the current round
+			}
+		}
 
-					// This client was the first to poll
-					else if(input.equals("ack"))
-					{
-						alertLabel.setForeground(new Color(54, 102, 0)); // Dark green
-						alertLabel.setText("You had the fastest poll! Answer before the timer runs out!");
-						alertLabel.setVisible(true);
-						toggleButtons(true);
-						clock = new TimerCode(10, false, true);  // represents clocked task that should run after X seconds
-						t.schedule(clock, 0, 1000); // clock is called every second
+		// Server starts game
+		else if(opcode == Protocol.START)
+			System.out.println("Starting game...");
 
-					}
-					
-					// This client was late in polling
-					else if(input.equals("negative-ack"))
-					{
-						alertLabel.setForeground(Color.RED);
-						alertLabel.setText("You were late polling! Better luck on the next question...");
-						alertLabel.setVisible(true);
-						clock = new TimerCode(10, false, false);  // represents clocked task that should run after X seconds
-						t.schedule(clock, 0, 1000); // clock is called every second
-					}
-					
-					// No clients polled
-					else if(input.equals("no-poll"))
-					{
-						alertLabel.setForeground(Color.BLACK);
-						alertLabel.setText("No players polled this round! On to the next question...");
-						alertLabel.setVisible(true);
-					}
-					
-					// This client answered correctly
-					else if(input.equals("correct"))
-					{
-						score += 10;
-						scoreLabel.setText("SCORE: " + score);
-						scoreLabel.repaint();
-						alertLabel.setForeground(new Color(54, 102, 0)); // Dark green
-						alertLabel.setText("You answered correctly! Keep it up!");
-						alertLabel.setVisible(true);
-					}
-					
-					// This client answered incorrectly
-					else if(input.equals("incorrect"))
-					{
-						score -= 10;
-						scoreLabel.setText("SCORE: " + score);
-						scoreLabel.repaint();
-						alertLabel.setForeground(Color.RED);
-						alertLabel.setText("You answered wrong! Get your head in the game!");
-						alertLabel.setVisible(true);
-					}
-					
-					// This client polled but didn't answer
-					else if(input.equals("penalty"))
-					{
-						score -= 20;
-						scoreLabel.setText("SCORE: " + score);
-						scoreLabel.repaint();
-						alertLabel.setForeground(Color.RED);
-						alertLabel.setText("You didn't submit anything! Did you even know the answer?");
-						alertLabel.setVisible(true);
-						toggleButtons(false);
-					}
-					
-					// Answering client (not this client) answered correctly
-					else if(((String)input).contains("alt_correct"))
-					{
-						// Get ID of client who attempted to answer question
-						int ackClientID = Integer.parseInt(((String)input).replaceAll("[^0-9]", ""));
-						
-						// Update alert label
-						alertLabel.setForeground(Color.BLUE);
-						alertLabel.setText("Client " + ackClientID + " answered correctly! You need to catch up!");
-						alertLabel.setVisible(true);
-					}
-					
-					// Answering client (not this one) answered incorrectly
-					else if(((String)input).contains("alt_incorrect"))
-					{
-						// Get ID of client who attempted to answer question
-						int ackClientID = Integer.parseInt(((String)input).replaceAll("[^0-9]", ""));
-						
-						// Update alert label
-						alertLabel.setForeground(Color.BLUE);
-						alertLabel.setText("Client " + ackClientID + " answered wrong! Definitely a skill issue...");
-						alertLabel.setVisible(true);
-					}
-					
-					// Answering client (not this one) polled but did not answer
-					else if(((String)input).contains("alt_penalty"))
-					{
-						// Get ID of client who attempted to answer question
-						int ackClientID = Integer.parseInt(((String)input).replaceAll("[^0-9]", ""));
-						
-						// Update alert label
-						alertLabel.setForeground(Color.BLUE);
-						alertLabel.setText("Client " + ackClientID + " didn't answer! Why did they even poll? -_-");
-						alertLabel.setVisible(true);
-					}
-					
-					// Game has finished (this client did not win)
-					else if(input.equals("end"))
-					{
-						deleteFile(questionFileName);
-						JOptionPane.showMessageDialog(window, "Game has finished! You scored: " + score,
-								"Game Finished", JOptionPane.PLAIN_MESSAGE);
-						System.exit(0);
-					}
-					
-					// Game has finished (this client won)
-					else if(input.equals("win"))
-					{
-						deleteFile(questionFileName);
-						JOptionPane.showMessageDialog(window, "You won! You scored: " + score,
-								"Winner!!!", JOptionPane.PLAIN_MESSAGE);
-						System.exit(0);
-					}
-				}
+		postUIUpdate(() ->
+		{
+			waitingLabel.setVisible(false);
+			poll.setEnabled(true);
+		});
+
+		// Continually read and display questions from server until the game ends
+		while(handleFrame(readGameFrame()))
+		{
+			// Keep reading
+		}
+	}
+
+	// Get back into the room after losing the server, keeping this client's ID so a room restored after a restart gives back its score
+	// Returns false if the server can't be reached again or won't take this client back (runs on the reader thread)
+	private boolean reconnect()
+	{
+		// Nothing from the lost round carries over
+		nextCountdownPhase = IDLE;
+		clock.execute(() ->
+		{
+			if(tick != null)
+				tick.cancel(false);
+
+			tick = null;
+			countdownPhase = IDLE;
+		});
+
+		postUIUpdate(() ->
+		{
+			poll.setEnabled(false);
+			toggleButtons(false);
+			alertLabel.setVisible(false);
+			question.setText("");
+			waitingLabel.setText("Lost connection to server. Reconnecting...");
+			waitingLabel.setVisible(true);
+		});
+
+		for(int attempt = 1; attempt <= RECONNECT_ATTEMPTS; attempt++)
+		{
+			try
+			{
+				Thread.sleep(RECONNECT_INTERVAL_MILLIS);
+			}
+			catch(InterruptedException e)
+			{
+				return false;
+			}
+
+			// Drop the lost connection, or the last attempt if it got no reply
+			try
+			{
+				tcpSocket.close();
+			}
+			catch(IOException e)
+			{
+				// Already gone
+			}
+
+			Protocol.Frame hello;
+			try
+			{
+				hello = connect(clientID);
+			}
+			catch(IOException e)
+			{
+				System.out.println("Reconnect attempt " + attempt + " failed: " + e.getMessage());
+				continue;
+			}
+
+			// Room is gone or full, or the server was replaced by a different version
+			if(hello.getOpcode() == Protocol.REFUSED)
+			{
+				System.out.println("Server refused to rejoin: " + Protocol.decodeString(hello.getPayload()));
+				return false;
+			}
+
+			if(hello.getOpcode() != Protocol.HELLO || hello.getPayload().get() != Protocol.VERSION)
+			{
+				System.out.println("Server is running a different version of the game");
+				return false;
 			}
+
+			rejoin(hello.getPayload().getInt(), Protocol.multicastGroup(hello.getPayload()));
+			return true;
 		}
 
-		catch(ClassNotFoundException e) 
+		return false;
+	}
+
+	// Pick the game back up on a new connection (runs on the reader thread)
+	private void rejoin(int newClientID, InetSocketAddress group)
+	{
+		// Only a room restored after a restart keeps this client's place, anywhere else it joins as a new player
+		if(newClientID != clientID)
 		{
-			System.err.println("ERROR loading question: ClassNotFound");
-			e.printStackTrace();
-		} 
+			System.out.println("Rejoined as ClientID: " + newClientID + ", score starts over");
+			clientID = newClientID;
+			showScore(0);
 
-		catch(FileNotFoundException e) 
+			byte[] buzzData = Protocol.datagram(Protocol.BUZZ, roomID, clientID, 0);
+			DatagramPacket packet = new DatagramPacket(buzzData, buzzData.length, serverAddress, portNumber);
+			sender.execute(() -> buzzPacket = packet);
+		}
+
+		else
+			System.out.println("Rejoined as ClientID: " + clientID);
+
+		// The server only multicasts to connections that subscribed, rejoin the group if it moved
+		if(multicastSocket != null && !multicastSocket.isClosed() && !multicastGroup.equals(group))
+			multicastSocket.close();
+
+		multicastGroup = group;
+		if(multicastGroup != null)
 		{
-			System.err.println("ERROR loading question: FileNotFound");
-			e.printStackTrace();
-		} 
+			if(multicastSocket == null || multicastSocket.isClosed())
+				joinMulticastGroup();
+			else
+				writeToServerTCP(Protocol.SUBSCRIBE, "");
+		}
 
-		catch(IOException e) 
+		postUIUpdate(() -> waitingLabel.setText("Reconnected. Waiting for the game to resume..."));
+	}
+
+	// Read the next game message, answering any PINGs on the way so the server can measure this client's latency
+	private Protocol.Frame readGameFrame() throws IOException
+	{
+		while(true)
+		{
+			Protocol.Frame frame = Protocol.readFrame(reader);
+
+			if(frame.getOpcode() != Protocol.PING)
+				return frame;
+
+			long serverTime = frame.getPayload().getLong();
+			sender.execute(() -> sendPong(serverTime));
+		}
+	}
+
+	// Handle one message from the server, returns false once the game has finished (runs on the reader thread)
+	private boolean handleFrame(Protocol.Frame frame)
+	{
+		byte opcode = frame.getOpcode();
+		ByteBuffer payload = frame.getPayload();
+		
+		// Display the question
+		if(opcode == Protocol.QUESTION) 
 		{
-			// Client closed before receiving question
-			// Do nothing
+			showQuestion(payload);
+			nextCountdownPhase = POLLING;
+		}
+		
+		// The question was multicast, show it from the group or have it resent over TCP
+		else if(opcode == Protocol.ANNOUNCE)
+		{
+			int announced = payload.getInt();
+			ByteBuffer multicast = awaitMulticastQuestion(announced);
+			
+			if(multicast != null)
+				showQuestion(multicast);
+			
+			else
+			{
+				System.out.println("Missed multicast question " + announced + ", asking for it over TCP");
+				writeToServerTCP(Protocol.REPAIR, Protocol.repair(announced));
+			}
+			
+			nextCountdownPhase = POLLING;
+		}
+		
+		// Ready client for next question
+		else if(opcode == Protocol.NEXT)
+		{
+			postUIUpdate(() ->
+			{
+				poll.setEnabled(true);
+				alertLabel.setVisible(false);
+			});
 		}
 
-		// If server stops running
-		// Stop timer
-		clock.cancel();
+		// This client was the first to poll
+		else if(opcode == Protocol.ACK)
+		{
+			showAlert(new Color(54, 102, 0), "You had the fastest poll! Answer before the timer runs out!"); // Dark green
+			postUIUpdate(() -> toggleButtons(true));
+			nextCountdownPhase = ANSWERING;
+		}
+		
+		// This client was late in polling
+		else if(opcode == Protocol.NEGATIVE_ACK)
+		{
+			showAlert(Color.RED, "You were late polling! Better luck on the next question...");
+			nextCountdownPhase = WATCHING;
+		}
 		
-		// Show alert to user
-		JOptionPane.showMessageDialog(window, "Lost connection to server. Exiting game...", 
-				"Connection Terminated", JOptionPane.PLAIN_MESSAGE);
+		// Time left in the phase that just started, the server ends the phase itself
+		else if(opcode == Protocol.COUNTDOWN)
+			startCountdown(nextCountdownPhase, payload.getInt());
+
+		// No clients polled
+		else if(opcode == Protocol.NO_POLL)
+			showAlert(Color.BLACK, "No players polled this round! On to the next question...");
 		
-		// Exit game
-		System.exit(0);
+		// Result of the answering client's attempt
+		else if(opcode == Protocol.STATUS)
+		{
+			byte status = payload.get();
+			
+			// Get ID of client who attempted to answer question
+			int ackClientID = payload.getInt();
+			
+			// This client answered
+			if(ackClientID == clientID)
+			{
+				// This client answered correctly
+				if(status == Protocol.CORRECT)
+				{
+					showScore(score + 10);
+					showAlert(new Color(54, 102, 0), "You answered correctly! Keep it up!"); // Dark green
+				}
+				
+				// This client answered incorrectly
+				else if(status == Protocol.INCORRECT)
+				{
+					showScore(score - 10);
+					showAlert(Color.RED, "You answered wrong! Get your head in the game!");
+				}
+				
+				// This client polled but didn't answer
+				else if(status == Protocol.PENALTY)
+				{
+					showScore(score - 20);
+					showAlert(Color.RED, "You didn't submit anything! Did you even know the answer?");
+					postUIUpdate(() -> toggleButtons(false));
+				}
+			}
+			
+			// Answering client (not this client) answered correctly
+			else if(status == Protocol.CORRECT)
+				showAlert(Color.BLUE, "Client " + ackClientID + " answered correctly! You need to catch up!");
+			
+			// Answering client (not this one) answered incorrectly
+			else if(status == Protocol.INCORRECT)
+				showAlert(Color.BLUE, "Client " + ackClientID + " answered wrong! Definitely a skill issue...");
+			
+			// Answering client (not this one) polled but did not answer
+			else if(status == Protocol.PENALTY)
+				showAlert(Color.BLUE, "Client " + ackClientID + " didn't answer! Why did they even poll? -_-");
+		}
+		
+		// Standings after a round, the server's score for this client replaces the one kept here
+		else if(opcode == Protocol.LEADERBOARD)
+		{
+			int rank = payload.getInt();
+			showScore(payload.getInt());
+			int numPlayers = payload.getInt();
+
+			StringBuilder leaders = new StringBuilder("<html>LEADERS<br>");
+			int numLeaders = payload.get();
+			for(int i = 0; i < numLeaders; i++)
+			{
+				int leaderID = payload.getInt();
+				int leaderScore = payload.getInt();
+				leaders.append(i + 1).append(". ").append(leaderID == clientID ? "You" : "Client " + leaderID)
+						.append(": ").append(leaderScore).append("<br>");
+			}
+			String leadersText = leaders.append("</html>").toString();
+
+			postUIUpdate(() ->
+			{
+				rankLabel.setText("RANK: " + rank + " of " + numPlayers);
+				leadersLabel.setText(leadersText);
+			});
+		}
+
+		// Game has finished
+		else if(opcode == Protocol.END)
+		{
+			boolean won = (payload.get() == 1);
+			int finalScore = score;
+
+			postUIUpdate(() ->
+			{
+				// This client won
+				if(won)
+					JOptionPane.showMessageDialog(window, "You won! You scored: " + finalScore,
+							"Winner!!!", JOptionPane.PLAIN_MESSAGE);
+				
+				// This client did not win
+				else
+					JOptionPane.showMessageDialog(window, "Game has finished! You scored: " + finalScore,
+							"Game Finished", JOptionPane.PLAIN_MESSAGE);
+				
+				System.exit(0);
+			});
+
+			return false;
+		}
+
+		return true;
+	}
+
+	// Decode a QUESTION payload and display it
+	private void showQuestion(ByteBuffer payload)
+	{
+		Question received = Question.decode(payload);
+
+		postUIUpdate(() ->
+		{
+			// Clear radio button selections
+			optionGroup.clearSelection();
+
+			// Display the question and its options
+			question.setText(received.getText());
+			for (int i = 0; i < Question.NUM_OPTIONS; i++)
+			{
+				options[i].setText(received.getOption(i));
+			}
+		});
+	}
+
+	// Start a countdown phase, cancelling the one that's running
+	private void startCountdown(int phase, long millis)
+	{
+		clock.execute(() ->
+		{
+			if(tick != null)
+				tick.cancel(false);
+
+			countdownPhase = phase;
+			secondsLeft = (int)((millis + 999) / 1000);
+			tick = clock.scheduleAtFixedRate(this::tickCountdown, 0, 1, TimeUnit.SECONDS); // called every second
+		});
+	}
+
+	// Show the time left, or end the phase once it has run out (runs on the clock thread)
+	private void tickCountdown()
+	{
+		if(secondsLeft <= 0)
+		{
+			endCountdown();
+			return;
+		}
+
+		int shown = secondsLeft--;
+		postUIUpdate(() ->
+		{
+			if(shown <= 5)
+				timer.setForeground(Color.RED);
+			else
+				timer.setForeground(Color.BLACK);
+			
+			// Update timer label
+			timer.setText("TIME: " + shown);
+		});
+	}
+
+	// Stop ticking once the phase has run out, the server decides what happens next (runs on the clock thread)
+	private void endCountdown()
+	{
+		boolean wasAnswering = (countdownPhase == ANSWERING);
+
+		countdownPhase = IDLE;
+		tick.cancel(false);
+		tick = null;
+
+		postUIUpdate(() ->
+		{
+			timer.setText("Times up!");
+			poll.setEnabled(false);
+
+			// Too late to submit
+			if(wasAnswering)
+				toggleButtons(false);
+		});
+	}
+
+	// Show a message under the buttons
+	private void showAlert(Color color, String message)
+	{
+		postUIUpdate(() ->
+		{
+			alertLabel.setForeground(color);
+			alertLabel.setText(message);
+			alertLabel.setVisible(true);
+		});
+	}
+
+	// Set this client's score and show it
+	private void showScore(int newScore)
+	{
+		score = newScore;
+		postUIUpdate(() -> scoreLabel.setText("SCORE: " + newScore));
+	}
+
+	// Queue a change to the window from another thread, changes queued before the EDT gets to them run as one event
+	private void postUIUpdate(Runnable update)
+	{
+		uiUpdates.add(update);
+
+		if(uiUpdatesScheduled.compareAndSet(false, true))
+			SwingUtilities.invokeLater(this::runUIUpdates);
+	}
+
+	// Run every queued change in order (runs on the EDT)
+	private void runUIUpdates()
+	{
+		// Cleared first so a change queued while these run schedules another batch
+		uiUpdatesScheduled.set(false);
+
+		Runnable update;
+		while((update = uiUpdates.poll()) != null)
+			update.run();
 	}
 
 	// Validate the IP address format
@@ -516,40 +962,6 @@ public class ClientWindow implements ActionListener
 			return false;
 	}
 	
-	// Read file content and return byte array
-	public byte[] readFile(int size) throws IOException 
-	{
-		
-        byte[] data = new byte[size];
-        
-        
-        int totalBytesRead = 0;
-        while (totalBytesRead < size) 
-        {
-            int bytesRead = reader.read(data, totalBytesRead, size - totalBytesRead);
-            
-            if (bytesRead == -1) 
-            {
-                break;
-            }
-            totalBytesRead += bytesRead;
-        }
-        return data;
-    }
-	
-	// Delete temp file between questions
-    private static void deleteFile(String fileName) 
-    {
-        File file = new File(fileName);
-        if (file.exists()) {
-            if (file.delete()) {
-                System.out.println("File deleted successfully: " + fileName);
-            } else {
-                System.out.println("Failed to delete file: " + fileName);
-            }
-        }
-    }
-	
 	// Toggle submit and option buttons enabled/disabled
 	public void toggleButtons(boolean enable)
 	{
@@ -562,46 +974,60 @@ public class ClientWindow implements ActionListener
 		submit.setEnabled(enable);
 	}
 	
-	// Write string to server using TCP
-	public void writeToServerTCP(String str) 
+	// Write a message to server using TCP, sent by the sender thread
+	public void writeToServerTCP(byte opcode, String payload) 
+	{
+		writeToServerTCP(opcode, payload.getBytes(StandardCharsets.UTF_8));
+	}
+	
+	public void writeToServerTCP(byte opcode, byte[] payload) 
+	{
+		sender.execute(() ->
+		{
+			try 
+			{
+				Protocol.writeFrame(writer, opcode, payload);
+			} 
+			
+			catch(IOException e1) 
+			{
+				System.err.println("ERROR writing opcode " + opcode + " to server");
+				e1.printStackTrace();
+			}
+		});
+	}
+	
+	// Answer a PING, stamped as late as possible so the server's estimate of this client's clock is accurate (sender thread)
+	private void sendPong(long serverTime)
 	{
 		try 
 		{
-			// Send kill request on close
-			writer.writeObject(str);
-			writer.flush();
+			Protocol.writeFrame(writer, Protocol.PONG, Protocol.pong(serverTime, System.nanoTime()));
 		} 
 		
 		catch(IOException e1) 
 		{
-			System.err.println("ERROR writing " + str + " to server");
+			System.err.println("ERROR writing opcode " + Protocol.PONG + " to server");
 			e1.printStackTrace();
 		}
 	}
-	
-	// Write an integer to the server using UDP
-	public void writeToServerUDP(int x)
+
+	// Stamp the buzz datagram with when poll was clicked and send it (sender thread)
+	private void sendBuzz(long clickTime)
+	{
+		Protocol.stampDatagram(buzzPacket.getData(), clickTime);
+		writeToServerUDP(buzzPacket);
+	}
+
+	// Send a prebuilt datagram to the server using UDP
+	public void writeToServerUDP(DatagramPacket packet)
 	{
 		try 
 		{
-			String xString;
-			
-			// Convert integer to string (deals with weird transmission error)
-			if(0 < x && x < 10)
-				xString = "0" + String.valueOf(x);
-			else
-				xString = String.valueOf(x);
-						
-			// Convert string to byte array
-			byte[] sendData = xString.getBytes();
-
-			// Create a DatagramPacket to send the clientID data to the server
-			DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, serverAddress, portNumber);
-
 			// Send packet to the server
-			udpSocket.send(sendPacket);
+			udpSocket.send(packet);
 						
-			if(x == clientID)
+			if(packet == buzzPacket)
 				System.out.println("Sent buzz to server");
 		} 
 		catch(Exception e2) 
@@ -619,8 +1045,9 @@ public class ClientWindow implements ActionListener
 		// User clicks poll
 		if(e.getSource().equals(poll))
 		{
-			// Send clientID to the server
-			writeToServerUDP(clientID);
+			// Send clientID to the server, stamped with the click so the server can order buzzes by when they were sent
+			long clickTime = System.nanoTime();
+			sender.execute(() -> sendBuzz(clickTime));
 		}
 		
 		// Submit user answer to server if they click submit
@@ -629,7 +1056,7 @@ public class ClientWindow implements ActionListener
 			// Obtain selected answer as string and alert user of submission
 			if(options[0].isSelected())
 			{
-				userAnswer = options[0].getText();
+				writeToServerTCP(Protocol.ANSWER, options[0].getText());
 				alertLabel.setForeground(Color.BLACK);
 				alertLabel.setText("Submitted: Option 1");
 				alertLabel.setVisible(true);
@@ -639,7 +1066,7 @@ public class ClientWindow implements ActionListener
 			
 			else if(options[1].isSelected())
 			{
-				userAnswer = options[1].getText();
+				writeToServerTCP(Protocol.ANSWER, options[1].getText());
 				alertLabel.setForeground(Color.BLACK);
 				alertLabel.setText("Submitted: Option 2");
 				alertLabel.setVisible(true);
@@ -649,7 +1076,7 @@ public class ClientWindow implements ActionListener
 			
 			else if(options[2].isSelected())
 			{
-				userAnswer = options[2].getText();
+				writeToServerTCP(Protocol.ANSWER, options[2].getText());
 				alertLabel.setForeground(Color.BLACK);
 				alertLabel.setText("Submitted: Option 3");
 				alertLabel.setVisible(true);
@@ -660,7 +1087,7 @@ public class ClientWindow implements ActionListener
 			
 			else if(options[3].isSelected())
 			{
-				userAnswer = options[3].getText();
+				writeToServerTCP(Protocol.ANSWER, options[3].getText());
 				alertLabel.setForeground(Color.BLACK);
 				alertLabel.setText("Submitted: Option 4");
 				alertLabel.setVisible(true);
@@ -692,11 +1119,18 @@ public class ClientWindow implements ActionListener
 				{
 					System.out.println("Closing client connection...");
 
-					// Delete temporary file for question
-					deleteFile("./temp.txt");
-					
-					// Send kill request on close
-					writeToServerTCP("kill");
+					// Send kill request on close, after anything still waiting to be sent
+					writeToServerTCP(Protocol.KILL, "");
+					sender.shutdown();
+
+					try
+					{
+						sender.awaitTermination(1, TimeUnit.SECONDS);
+					}
+					catch(InterruptedException e1)
+					{
+						// Exit anyway
+					}
 
 					System.out.println("Game closed");
 					System.exit(0);
@@ -713,79 +1147,4 @@ public class ClientWindow implements ActionListener
 		}
 	}
 
-	// this class is responsible for running the timer on the window
-	public class TimerCode extends TimerTask
-	{
-		// Length of timer
-		private int duration;
-
-		// Indicates whether this timer is for polling or answering
-		private Boolean isPolling;
-		
-		// Indicates whether this client had the fastest poll
-		private Boolean fastestPoll;
-		
-		public TimerCode(int duration, Boolean isPolling, Boolean fastestPoll)
-		{
-			this.duration = duration;
-			this.isPolling = isPolling;
-			this.fastestPoll = fastestPoll;
-		}
-		
-		@Override
-		public void run()
-		{
-			if(duration < 0)
-			{
-				// Timer is for answering
-				if(!isPolling && fastestPoll && userAnswer != null)
-				{
-					// Client submitted answer
-					if(!userAnswer.equals(""))
-						writeToServerTCP(userAnswer);
-					
-					// Client did not submit answer in time
-					else
-						writeToServerTCP("no answer");
-					
-					// Reset userAnswer for next question
-					userAnswer = "";
-				}
-				
-				// Timer is for polling
-				else
-				{
-					// Signal polling complete to server
-					writeToServerUDP(-1);
-				}
-				
-				// Avoid error in transmission
-				if(userAnswer == null)
-				{
-					writeToServerTCP("no answer");
-					userAnswer = "";
-					toggleButtons(false);
-				}
-				
-				timer.setText("Times up!");
-				window.repaint();
-				poll.setEnabled(false);
-					
-				// Cancel the timed task
-				this.cancel();  
-				return;
-			}
-
-			if(duration <= 5)
-				timer.setForeground(Color.RED);
-			else
-				timer.setForeground(Color.BLACK);
-			
-			// Update timer label
-			timer.setText("TIME: " + duration);
-			duration--;
-			window.repaint();
-		}
-	}
-
 }
\ No newline at end of file
@@ -1,8 +1,6 @@
-import java.io.FileNotFoundException;
-
 public class ClientWindowTest
 {
-	public static void main(String[] args) throws FileNotFoundException
+	public static void main(String[] args)
 	{
 		ClientWindow window = new ClientWindow();
 	}
@@ -0,0 +1,74 @@
+// A client's round trip time and the offset between its clock and the server's, measured from PING/PONG exchanges
+// Written by the thread reading the client's connection, read by the UDP thread when the client buzzes
+class ClockSync
+{
+	// Recent exchanges kept, the one with the lowest round trip gives the most accurate offset
+	private static final int SAMPLES = 8;
+
+	private final long[] sampleRTTs;
+	private final long[] sampleOffsets;
+	private int numSamples;
+
+	// Smoothed round trip time (nanoseconds, 0 until the first exchange)
+	private volatile long smoothedRTT;
+
+	// Client clock minus server clock, taken from the best recent exchange
+	private volatile long offset;
+	private volatile boolean synced;
+
+	public ClockSync()
+	{
+		sampleRTTs = new long[SAMPLES];
+		sampleOffsets = new long[SAMPLES];
+		numSamples = 0;
+		smoothedRTT = 0;
+		offset = 0;
+		synced = false;
+	}
+
+	// Record an exchange: when the server sent the PING, when the client sent the PONG (client clock) and when it arrived
+	// Returns the round trip time of the exchange
+	public long sample(long serverSendTime, long clientTime, long serverReceiveTime)
+	{
+		long rtt = serverReceiveTime - serverSendTime;
+		if(rtt < 0)
+			return 0;
+
+		// Assume the PONG was sent halfway through the round trip
+		int slot = numSamples++ % SAMPLES;
+		sampleRTTs[slot] = rtt;
+		sampleOffsets[slot] = clientTime - (serverSendTime + rtt / 2);
+
+		int best = 0;
+		for(int i = 1; i < Math.min(numSamples, SAMPLES); i++)
+		{
+			if(sampleRTTs[i] < sampleRTTs[best])
+				best = i;
+		}
+
+		// Same smoothing as TCP's round trip estimate
+		smoothedRTT = (smoothedRTT == 0) ? rtt : smoothedRTT + (rtt - smoothedRTT) / 8;
+		offset = sampleOffsets[best];
+		synced = true;
+
+		return rtt;
+	}
+
+	// Smoothed round trip time in nanoseconds (0 until the first exchange)
+	public long getRTT()
+	{
+		return smoothedRTT;
+	}
+
+	// Estimate when a message stamped with the client's clock was sent, on the server's clock
+	// The estimate is never after it arrived and never more than maxCredit before it, so a client can't buy more than that
+	public long estimateSendTime(long clientTime, long arrivalTime, long maxCredit)
+	{
+		if(!synced)
+			return arrivalTime;
+
+		long sendTime = clientTime - offset;
+
+		return Math.max(arrivalTime - maxCredit, Math.min(sendTime, arrivalTime));
+	}
+}
@@ -0,0 +1,113 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// Thread that multiplexes many client connections on a single Selector
+class EventLoop extends Thread
+{
+	private final Selector selector;
+
+	// Work handed to this loop by other threads (registrations, interest changes)
+	private final ConcurrentLinkedQueue<Runnable> tasks;
+
+	// Shared by every connection on this loop, since reads only happen on this thread
+	private final ByteBuffer readBuffer;
+
+	public EventLoop(int index) throws IOException
+	{
+		super("EventLoop-" + index);
+
+		selector = Selector.open();
+		tasks = new ConcurrentLinkedQueue<Runnable>();
+		readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+
+		// Don't keep the server alive once the game ends
+		setDaemon(true);
+	}
+
+	// Run a task on this loop's thread
+	public void execute(Runnable task)
+	{
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	// Start selecting on a newly accepted client channel
+	public void register(SocketChannel channel, ClientConnection connection)
+	{
+		execute(() ->
+		{
+			try
+			{
+				connection.setSelectionKey(channel.register(selector, SelectionKey.OP_READ, connection));
+			}
+
+			catch(IOException e)
+			{
+				System.err.println("ERROR registering Client " + connection.getClientID());
+				connection.close();
+			}
+		});
+	}
+
+	// Run all tasks queued by other threads
+	private void runTasks()
+	{
+		Runnable task;
+		while((task = tasks.poll()) != null)
+		{
+			task.run();
+		}
+	}
+
+	@Override
+	public void run()
+	{
+		while(true)
+		{
+			try
+			{
+				// Block until a channel is ready or another thread wakes us up
+				selector.select();
+
+				runTasks();
+
+				Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
+				while(keyIterator.hasNext())
+				{
+					SelectionKey key = keyIterator.next();
+					keyIterator.remove();
+
+					ClientConnection connection = (ClientConnection)key.attachment();
+
+					// Rooms, writer threads and the console close connections from their own threads, which can cancel the key at any point
+					try
+					{
+						if(key.isValid() && key.isReadable())
+							connection.onReadable(readBuffer);
+
+						if(key.isValid() && key.isWritable())
+							connection.onWritable();
+					}
+
+					catch(CancelledKeyException e)
+					{
+						// Connection was closed, nothing left to do for it
+					}
+				}
+			}
+
+			catch(IOException e)
+			{
+				System.err.println("ERROR in event loop " + getName());
+				e.printStackTrace();
+				break;
+			}
+		}
+	}
+}
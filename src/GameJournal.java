@@ -0,0 +1,559 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32C;
+
+// Append-only journal of game events, replayed after a crash to rebuild the rooms that were playing
+// Game threads only fill in preallocated events, one thread copies them into the memory-mapped file and syncs it to disk on a schedule
+// Game threads never wait on that thread: if a slow sync leaves it a whole ring behind, further events are dropped and counted
+// Records are [length: 2][CRC32C: 4][type: 1][time: 8][roomID: 4][clientID: 4][value: 8][text (UTF-8)], the CRC covers what follows it
+class GameJournal implements Runnable
+{
+	// Event types, value and text are only used where noted
+	static final byte ROOM_CREATED = 1;		// clientID: room capacity, value: first question in the bank
+	static final byte JOINED = 2;
+	static final byte LEFT = 3;
+	static final byte STARTED = 4;
+	static final byte QUESTION = 5;			// value: question number
+	static final byte BUZZ = 6;				// value: estimated send time (server System.nanoTime)
+	static final byte ACK = 7;				// clientID: poll winner, -1 if nobody polled
+	static final byte ANSWER = 8;			// text: the answer
+	static final byte GRADED = 9;			// value: answer status in the high 32 bits, the client's score after grading in the low 32
+	static final byte SCORE = 10;			// value: score, written for players of a restored room
+	static final byte CLOSED = 11;
+	static final byte RESTORED = 12;		// value: questions already played, written when a room is rebuilt
+
+	private static final int HEADER_SIZE = 6;
+	private static final int BODY_SIZE = 25;
+	private static final int MAX_TEXT = 1024;
+	private static final byte[] NO_TEXT = new byte[0];
+
+	// The file is mapped one region at a time, records never cross into the next region
+	private static final long REGION_SIZE = 16 << 20;
+
+	// Length that marks the rest of a region as unused (no record is this long)
+	private static final int REGION_END = 0xFFFF;
+
+	// Events that can be queued before appends are dropped until the journal thread catches up
+	private static final int RING_SIZE = 1 << 16;
+	private static final int RING_MASK = RING_SIZE - 1;
+
+	// Where the journal ends up once start() has synced it, it is written under a temporary name until then
+	private final Path path;
+	private final Path newPath;
+	private final FileChannel file;
+	private final long syncNanos;
+
+	// Region being appended to, and how much of it has been synced (only touched by the journal thread once started)
+	private MappedByteBuffer region;
+	private long regionStart;
+	private int syncedPosition;
+	private final CRC32C crc;
+
+	// Events queued by game threads, each claims the next sequence number and publishes its slot once filled in
+	// A slot is reused once the journal thread has written it, so appending never allocates
+	private final Event[] ring;
+	private final AtomicLongArray published;
+	private final AtomicLong claimed;
+	private volatile long consumed;
+
+	// Set once start() has handed writing over to the journal thread, before that whoever appends writes a full ring itself
+	private volatile boolean started;
+
+	// The journal's own thread, and whether close() has asked it to stop
+	private Thread thread;
+	private volatile boolean closed;
+
+	// Rooms that were playing when the previous journal ended
+	private final Map<Integer, RecoveredRoom> recoveredRooms;
+
+	private final LongAdder numWritten;
+	private final LongAdder numDropped;
+	private final LongAdder numSyncs;
+
+	private GameJournal(Path path, long syncMillis, Map<Integer, RecoveredRoom> recoveredRooms) throws IOException
+	{
+		this.path = path;
+		this.recoveredRooms = recoveredRooms;
+		syncNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, syncMillis));
+
+		// Left behind by a crash before the last journal replaced the one before it
+		newPath = Paths.get(path + ".new");
+		Files.deleteIfExists(newPath);
+
+		file = FileChannel.open(newPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		regionStart = 0;
+		region = file.map(FileChannel.MapMode.READ_WRITE, regionStart, REGION_SIZE);
+		syncedPosition = 0;
+		crc = new CRC32C();
+
+		ring = new Event[RING_SIZE];
+		published = new AtomicLongArray(RING_SIZE);
+		for(int i = 0; i < RING_SIZE; i++)
+		{
+			ring[i] = new Event();
+			published.set(i, -1);
+		}
+
+		claimed = new AtomicLong();
+		consumed = 0;
+		started = false;
+		closed = false;
+
+		numWritten = new LongAdder();
+		numDropped = new LongAdder();
+		numSyncs = new LongAdder();
+	}
+
+	// Open the journal set with -Dquiz.journal=<file>, synced every -Dquiz.journalSyncMillis (100 by default)
+	// The previous journal is replayed and stays in place until start() replaces it, returns null when journaling isn't enabled
+	public static GameJournal fromProperties() throws IOException
+	{
+		String journalPath = System.getProperty("quiz.journal");
+		if(journalPath == null || journalPath.isEmpty())
+			return null;
+
+		Path path = Paths.get(journalPath);
+
+		Map<Integer, RecoveredRoom> recovered = new LinkedHashMap<Integer, RecoveredRoom>();
+		if(Files.exists(path))
+			recovered = replay(path);
+
+		return new GameJournal(path, Long.getLong("quiz.journalSyncMillis", 100), recovered);
+	}
+
+	// Rooms that were playing when the previous journal ended, in the order they were created
+	public Collection<RecoveredRoom> getRecoveredRooms()
+	{
+		return recoveredRooms.values();
+	}
+
+	// Queue an event, never waits on the disk or the journal thread
+	// An event that finds the ring full is dropped, so a restart after that may rebuild a room from incomplete records
+	public void append(byte type, int roomID, int clientID, long value)
+	{
+		append(type, roomID, clientID, value, null);
+	}
+
+	public void append(byte type, int roomID, int clientID, long value, String text)
+	{
+		long sequence;
+		while(true)
+		{
+			sequence = claimed.get();
+
+			// Only claim a slot the journal thread has finished with
+			if(sequence - consumed < RING_SIZE)
+			{
+				if(claimed.compareAndSet(sequence, sequence + 1))
+					break;
+			}
+
+			// Rooms are restored on one thread before start(), and nothing else would empty the ring for it
+			else if(!started)
+				writePending();
+
+			else
+			{
+				numDropped.increment();
+				return;
+			}
+		}
+
+		int index = (int)(sequence & RING_MASK);
+		Event event = ring[index];
+		event.type = type;
+		event.time = System.currentTimeMillis();
+		event.roomID = roomID;
+		event.clientID = clientID;
+		event.value = value;
+		event.text = text;
+
+		published.set(index, sequence);
+	}
+
+	// Write whatever is queued and sync it, then keep doing so on the journal's own thread
+	// The synced journal holds the restored rooms, so only now does it replace the previous one
+	public void start()
+	{
+		writePending();
+		sync();
+
+		try
+		{
+			Files.move(newPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			syncDirectory();
+		}
+
+		catch(IOException e)
+		{
+			System.err.println("ERROR replacing previous journal: " + e.getMessage());
+		}
+
+		started = true;
+		thread = ServerThreads.start(this, "GameJournal");
+	}
+
+	// Stop the journal thread, then write and sync whatever is still queued so a clean shutdown loses nothing
+	public void close()
+	{
+		if(closed)
+			return;
+
+		closed = true;
+
+		if(thread != null)
+		{
+			LockSupport.unpark(thread);
+
+			try
+			{
+				thread.join();
+			}
+
+			catch(InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		writePending();
+		sync();
+
+		try
+		{
+			file.close();
+		}
+
+		catch(IOException e)
+		{
+			System.err.println("ERROR closing journal: " + e.getMessage());
+		}
+	}
+
+	// Copy queued events into the file and sync them every interval
+	@Override
+	public void run()
+	{
+		long nextSync = System.nanoTime() + syncNanos;
+
+		while(!closed)
+		{
+			long now = System.nanoTime();
+			if(now - nextSync < 0)
+			{
+				LockSupport.parkNanos(nextSync - now);
+				continue;
+			}
+
+			nextSync += syncNanos;
+
+			// Don't try to catch up on syncs missed while the disk was slow
+			if(nextSync - now < 0)
+				nextSync = now + syncNanos;
+
+			writePending();
+			sync();
+		}
+	}
+
+	// Events queued and not yet in the file
+	public long getNumPending()
+	{
+		return claimed.get() - consumed;
+	}
+
+	public long getNumWritten()
+	{
+		return numWritten.sum();
+	}
+
+	// Events dropped because the journal thread was a whole ring behind
+	public long getNumDropped()
+	{
+		return numDropped.sum();
+	}
+
+	public long getNumSyncs()
+	{
+		return numSyncs.sum();
+	}
+
+	// Copy every queued event into the mapped file, in the order they were claimed
+	private void writePending()
+	{
+		long sequence = consumed;
+		long written = 0;
+		int index;
+
+		while(published.get(index = (int)(sequence & RING_MASK)) == sequence)
+		{
+			Event event = ring[index];
+			boolean failed = false;
+
+			try
+			{
+				write(event);
+				written++;
+			}
+
+			catch(IOException e)
+			{
+				System.err.println("ERROR writing journal: " + e.getMessage());
+				failed = true;
+			}
+
+			// Free the slot, an event that couldn't be written is dropped
+			event.text = null;
+			consumed = ++sequence;
+
+			if(failed)
+				break;
+		}
+
+		numWritten.add(written);
+	}
+
+	// Append one record, moving to the next region if it doesn't fit in this one
+	private void write(Event event) throws IOException
+	{
+		byte[] text = encode(event.text);
+		int recordSize = HEADER_SIZE + BODY_SIZE + text.length;
+
+		if(region.remaining() < recordSize)
+			nextRegion();
+
+		int start = region.position();
+
+		region.position(start + HEADER_SIZE);
+		region.put(event.type);
+		region.putLong(event.time);
+		region.putInt(event.roomID);
+		region.putInt(event.clientID);
+		region.putLong(event.value);
+		region.put(text);
+
+		crc.reset();
+		crc.update(region.duplicate().position(start + HEADER_SIZE).limit(region.position()));
+
+		region.putShort(start, (short)(BODY_SIZE + text.length));
+		region.putInt(start + 2, (int)crc.getValue());
+	}
+
+	// An event's text as UTF-8, cut to the longest a record holds
+	private static byte[] encode(String text)
+	{
+		if(text == null)
+			return NO_TEXT;
+
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		return (bytes.length > MAX_TEXT) ? Arrays.copyOf(bytes, MAX_TEXT) : bytes;
+	}
+
+	// Mark the rest of this region unused, sync it and map the next one
+	private void nextRegion() throws IOException
+	{
+		if(region.remaining() >= 2)
+			region.putShort(region.position(), (short)REGION_END);
+
+		region.force();
+		numSyncs.increment();
+
+		regionStart += REGION_SIZE;
+		region = file.map(FileChannel.MapMode.READ_WRITE, regionStart, REGION_SIZE);
+		syncedPosition = 0;
+	}
+
+	// Flush what's been written since the last sync to the disk
+	private void sync()
+	{
+		if(region.position() == syncedPosition)
+			return;
+
+		region.force(syncedPosition, region.position() - syncedPosition);
+		syncedPosition = region.position();
+		numSyncs.increment();
+	}
+
+	// Make the rename of the journal durable
+	private void syncDirectory() throws IOException
+	{
+		Path directory = path.toAbsolutePath().getParent();
+		if(directory == null)
+			return;
+
+		try(FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ))
+		{
+			channel.force(true);
+		}
+	}
+
+	// Read a journal up to its last intact record and work out which rooms were still playing
+	static Map<Integer, RecoveredRoom> replay(Path journal) throws IOException
+	{
+		Map<Integer, RecoveredRoom> rooms = new LinkedHashMap<Integer, RecoveredRoom>();
+		CRC32C checksum = new CRC32C();
+		long numRecords = 0;
+
+		try(FileChannel channel = FileChannel.open(journal, StandardOpenOption.READ))
+		{
+			long size = channel.size();
+			boolean ended = false;
+
+			for(long start = 0; start < size && !ended; start += REGION_SIZE)
+			{
+				MappedByteBuffer records = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(REGION_SIZE, size - start));
+
+				while(records.remaining() >= HEADER_SIZE)
+				{
+					int length = records.getShort(records.position()) & 0xFFFF;
+
+					if(length == REGION_END)
+						break;
+
+					// Nothing written past here, or the last record was torn by the crash
+					if(length < BODY_SIZE || records.remaining() < HEADER_SIZE + length)
+					{
+						ended = true;
+						break;
+					}
+
+					int expected = records.getInt(records.position() + 2);
+					ByteBuffer body = records.duplicate().position(records.position() + HEADER_SIZE).limit(records.position() + HEADER_SIZE + length);
+
+					checksum.reset();
+					checksum.update(body.duplicate());
+					if((int)checksum.getValue() != expected)
+					{
+						ended = true;
+						break;
+					}
+
+					apply(rooms, body);
+					records.position(body.limit());
+					numRecords++;
+				}
+			}
+		}
+
+		// Only games that were under way are worth rebuilding
+		rooms.values().removeIf(room -> room.closed || !room.started);
+
+		System.out.println("Replayed " + numRecords + " journal records from " + journal + ", " + rooms.size() + " rooms to restore");
+		return rooms;
+	}
+
+	// Update the recovered rooms with one record
+	private static void apply(Map<Integer, RecoveredRoom> rooms, ByteBuffer body)
+	{
+		byte type = body.get();
+		body.getLong();
+		int roomID = body.getInt();
+		int clientID = body.getInt();
+		long value = body.getLong();
+
+		// Room IDs are reused once a room has closed
+		if(type == ROOM_CREATED)
+		{
+			rooms.put(roomID, new RecoveredRoom(roomID, clientID, (int)value));
+			return;
+		}
+
+		RecoveredRoom room = rooms.get(roomID);
+		if(room == null)
+			return;
+
+		if(type == JOINED)
+			room.scores.putIfAbsent(clientID, 0);
+
+		else if(type == LEFT)
+			room.scores.remove(clientID);
+
+		else if(type == STARTED)
+			room.started = true;
+
+		else if(type == QUESTION)
+			room.currentQuestion = (int)value;
+
+		// A round is over once its answer is graded or nobody polled, an unfinished round is played again
+		else if(type == ACK && clientID == -1)
+			room.questionsPlayed = room.currentQuestion;
+
+		else if(type == GRADED)
+		{
+			room.questionsPlayed = room.currentQuestion;
+
+			if(room.scores.containsKey(clientID))
+				room.scores.put(clientID, (int)value);
+		}
+
+		else if(type == SCORE && room.scores.containsKey(clientID))
+			room.scores.put(clientID, (int)value);
+
+		else if(type == RESTORED)
+		{
+			room.started = true;
+			room.currentQuestion = (int)value;
+			room.questionsPlayed = (int)value;
+		}
+
+		else if(type == CLOSED)
+			room.closed = true;
+	}
+
+	// A slot in the ring, filled in by the game thread that claimed it
+	private static class Event
+	{
+		byte type;
+		long time;
+		int roomID;
+		int clientID;
+		long value;
+		String text;
+	}
+
+	// State of a room rebuilt from the journal: its settings, how far the game got and the scores of the players still in it
+	static class RecoveredRoom
+	{
+		final int roomID;
+		final int capacity;
+		final int firstQuestion;
+
+		boolean started;
+		boolean closed;
+		int currentQuestion;
+		int questionsPlayed;
+
+		// Scores by client ID, in the order the players joined
+		final Map<Integer, Integer> scores;
+
+		RecoveredRoom(int roomID, int capacity, int firstQuestion)
+		{
+			this.roomID = roomID;
+			this.capacity = capacity;
+			this.firstQuestion = firstQuestion;
+
+			started = false;
+			closed = false;
+			currentQuestion = 0;
+			questionsPlayed = 0;
+			scores = new LinkedHashMap<Integer, Integer>();
+		}
+	}
+}
@@ -0,0 +1,195 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.stream.Stream;
+
+// Crash recovery checks for the game journal, run from the src directory with: java GameJournalTest
+// Journals games the way GameRoom does, then restarts from the journal and rebuilds the rooms the way Server does
+public class GameJournalTest
+{
+	// Rebuilding this many players queues more events than the journal's ring holds before it is started
+	private static final int NUM_ROOMS = 3000;
+	private static final int PLAYERS_PER_ROOM = 12;
+	private static final int QUESTIONS_PLAYED = 7;
+
+	// Events GameJournal queues before dropping them (its RING_SIZE)
+	private static final int JOURNAL_RING_SIZE = 1 << 16;
+
+	// How long restoring may take before it counts as hung
+	private static final long RESTORE_TIMEOUT_MILLIS = 30_000;
+
+	private static int numChecks = 0;
+	private static int numFailures = 0;
+
+	public static void main(String[] args) throws Exception
+	{
+		Path directory = Files.createTempDirectory("quiz-journal");
+		Path journalPath = directory.resolve("game.journal");
+		System.setProperty("quiz.journal", journalPath.toString());
+
+		try
+		{
+			testPlayedGames(journalPath);
+			testRestore(journalPath);
+			testOverflow(directory);
+			testClose(directory);
+		}
+		finally
+		{
+			try(Stream<Path> files = Files.walk(directory))
+			{
+				files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+			}
+		}
+
+		System.out.println(numChecks + " checks, " + numFailures + " failed");
+		System.exit((numFailures > 0) ? 1 : 0);
+	}
+
+	private static void check(boolean passed, String description)
+	{
+		numChecks++;
+
+		if(!passed)
+		{
+			numFailures++;
+			System.out.println("FAILED: " + description);
+		}
+	}
+
+	// Score the test gives a player, some of them negative
+	private static int scoreOf(int roomID, int clientID)
+	{
+		return (roomID * 7 + clientID * 10) % 90 - 30;
+	}
+
+	// Every room is part way through its game, with each player graded on the last question played
+	// Appended before start() so none of them can be dropped by a journal thread that falls behind
+	private static void testPlayedGames(Path journalPath) throws IOException
+	{
+		GameJournal journal = GameJournal.fromProperties();
+		check(journal.getRecoveredRooms().isEmpty(), "a new journal has no rooms to recover");
+
+		for(int roomID = 1; roomID <= NUM_ROOMS; roomID++)
+		{
+			journal.append(GameJournal.ROOM_CREATED, roomID, PLAYERS_PER_ROOM + 1, 1);
+
+			for(int clientID = 1; clientID <= PLAYERS_PER_ROOM; clientID++)
+				journal.append(GameJournal.JOINED, roomID, clientID, 0);
+
+			journal.append(GameJournal.STARTED, roomID, 0, 0);
+			journal.append(GameJournal.QUESTION, roomID, 0, QUESTIONS_PLAYED);
+
+			for(int clientID = 1; clientID <= PLAYERS_PER_ROOM; clientID++)
+				journal.append(GameJournal.GRADED, roomID, clientID, ((long)Protocol.CORRECT << 32) | (scoreOf(roomID, clientID) & 0xFFFFFFFFL));
+		}
+
+		journal.start();
+		journal.close();
+		checkRecovered(GameJournal.replay(journalPath).values(), "played games");
+	}
+
+	// Rebuilding the rooms before the journal starts must neither hang nor lose any of them
+	private static void testRestore(Path journalPath) throws Exception
+	{
+		GameJournal journal = GameJournal.fromProperties();
+		checkRecovered(journal.getRecoveredRooms(), "journal reopened");
+
+		QuestionPack questions = new QuestionPack(Paths.get("questions", "questions.pack"));
+		RoomManager roomManager = new RoomManager(new QuestionCache(questions, QuestionCache.DEFAULT_CAPACITY), null, journal);
+
+		// Restored on another thread so a hang fails the check instead of the whole run
+		Thread restorer = new Thread(() ->
+		{
+			for(GameJournal.RecoveredRoom recovered : journal.getRecoveredRooms())
+			{
+				roomManager.restoreRoom(recovered);
+			}
+		}, "Restorer");
+		restorer.setDaemon(true);
+		restorer.start();
+		restorer.join(RESTORE_TIMEOUT_MILLIS);
+
+		check(!restorer.isAlive(), "restoring more events than the ring holds finishes before start()");
+		if(restorer.isAlive())
+			return;
+
+		check(roomManager.getRoom(NUM_ROOMS) != null, "every recovered room was rebuilt");
+
+		journal.start();
+		journal.close();
+		checkRecovered(GameJournal.replay(journalPath).values(), "restored rooms");
+	}
+
+	// A journal thread a whole ring behind costs the game threads dropped events, never a wait
+	private static void testOverflow(Path directory) throws IOException
+	{
+		System.setProperty("quiz.journal", directory.resolve("overflow.journal").toString());
+		System.setProperty("quiz.journalSyncMillis", "60000");
+
+		GameJournal journal = GameJournal.fromProperties();
+		journal.start();
+
+		// The journal thread sleeps through the first sync interval, so nothing is written while these are appended
+		for(int i = 0; i < JOURNAL_RING_SIZE + 100; i++)
+			journal.append(GameJournal.BUZZ, 1, i % PLAYERS_PER_ROOM + 1, i);
+
+		check(journal.getNumPending() == JOURNAL_RING_SIZE, "a full ring holds RING_SIZE events");
+		check(journal.getNumDropped() == 100, "events past a full ring are dropped and counted");
+	}
+
+	// Closing writes and syncs events the journal thread hasn't got to yet
+	private static void testClose(Path directory) throws IOException
+	{
+		Path journalPath = directory.resolve("closed.journal");
+		System.setProperty("quiz.journal", journalPath.toString());
+		System.setProperty("quiz.journalSyncMillis", "60000");
+
+		GameJournal journal = GameJournal.fromProperties();
+		journal.start();
+
+		// Appended while the journal thread sleeps through the first sync interval
+		journal.append(GameJournal.ROOM_CREATED, 1, PLAYERS_PER_ROOM + 1, 1);
+		journal.append(GameJournal.JOINED, 1, 1, 0);
+		journal.append(GameJournal.STARTED, 1, 0, 0);
+		journal.append(GameJournal.QUESTION, 1, 0, 1);
+		journal.append(GameJournal.GRADED, 1, 1, ((long)Protocol.CORRECT << 32) | 10);
+		journal.close();
+
+		check(journal.getNumPending() == 0 && journal.getNumWritten() == 5, "close writes every queued event");
+
+		Map<Integer, GameJournal.RecoveredRoom> rooms = GameJournal.replay(journalPath);
+		GameJournal.RecoveredRoom room = rooms.get(1);
+		check(room != null && room.questionsPlayed == 1 && room.scores.get(1) == 10, "events queued before close are replayed");
+	}
+
+	// Every room comes back with its settings, its progress and every player's score
+	private static void checkRecovered(Collection<GameJournal.RecoveredRoom> rooms, String name)
+	{
+		int numRooms = 0;
+		boolean settingsKept = true;
+		boolean progressKept = true;
+		boolean scoresKept = true;
+
+		for(GameJournal.RecoveredRoom room : rooms)
+		{
+			numRooms++;
+
+			settingsKept &= (room.capacity == PLAYERS_PER_ROOM + 1 && room.firstQuestion == 1);
+			progressKept &= (room.started && !room.closed && room.questionsPlayed == QUESTIONS_PLAYED);
+			scoresKept &= (room.scores.size() == PLAYERS_PER_ROOM);
+
+			for(Map.Entry<Integer, Integer> player : room.scores.entrySet())
+				scoresKept &= (player.getValue() == scoreOf(room.roomID, player.getKey()));
+		}
+
+		check(numRooms == NUM_ROOMS, name + ": every room recovered (" + numRooms + " of " + NUM_ROOMS + ")");
+		check(settingsKept, name + ": room settings recovered");
+		check(progressKept, name + ": questions played recovered");
+		check(scoresKept, name + ": every player's score recovered");
+	}
+}
@@ -0,0 +1,757 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+// One game with its own roster, question sequence and scores
+// The round state machine (question -> polling -> ack -> answer -> grade -> next) runs on the room's worker thread
+class GameRoom
+{
+	// Phases of a game
+	static final int WAITING = 0;		// Waiting for the start command
+	static final int POLLING = 1;		// Question shown, clients may buzz
+	static final int ANSWERING = 2;		// Waiting for the fastest client's answer
+	static final int PAUSED = 3;		// Showing the result before the next question
+	static final int FINISHED = 4;
+
+	private static final String[] PHASE_NAMES = {"waiting", "polling", "answering", "paused", "finished"};
+
+	// Questions loaded in the background ahead of the one being played
+	static final int PREFETCH_AHEAD = 2;
+
+	private final int roomID;
+	private final int capacity;
+	private final RoomManager roomManager;
+	private final QuestionCache questions;
+
+	// Sends each question once to the multicast group, subscribed clients only get its number over TCP (null if disabled)
+	private final QuestionMulticaster multicaster;
+
+	// This game plays numQuestions questions from the bank, starting at firstQuestion and wrapping around
+	private final int firstQuestion;
+	private final int numQuestions;
+
+	// Records this room's game events (null when journaling is off)
+	private final GameJournal journal;
+
+	// Every state change runs on this thread, so game state needs no locking
+	private final ScheduledExecutorService worker;
+
+	// Keeps the deadline of the current phase, which then runs on the worker
+	private final TimerWheel timers;
+
+	// Clients by ID (written by event loops and the worker, read by broadcasts)
+	private final ClientRegistry clients;
+
+	// Scores in rank order (players join from event loops, everything else happens on the worker)
+	private final Leaderboard leaderboard;
+
+	// Guards client IDs and joining clients against the start of the game
+	private final ReentrantLock joinLock;
+	private final BitSet usedClientIDs;
+
+	// Scores of players from before a restart who haven't rejoined yet, by client ID (guarded by joinLock)
+	private final HashMap<Integer, Integer> restoredScores;
+
+	// Game state
+	private volatile boolean gameInProgress;
+	private volatile int phase;
+	private int questionNum;
+	private boolean questionMulticast;
+	private TimerWheel.Timeout deadline;
+	private final AtomicBoolean closed;
+
+	// Polling
+	private final BuzzArbiter clientPolls;
+
+	// Set by the round's first buzz, which starts the arbitration window
+	private final AtomicBoolean arbitrationStarted;
+
+	// When the current question went out, no buzz can have been sent before it
+	private volatile long questionTime;
+
+	// Measures every client's round trip time and clock offset
+	private final ScheduledFuture<?> pinger;
+
+	// Client who won polling and is expected to answer, and when they were told they could
+	private volatile int answeringClientID;
+	private long ackTime;
+
+	public GameRoom(int roomID, int capacity, RoomManager roomManager, QuestionCache questions, QuestionMulticaster multicaster, int firstQuestion, ScheduledExecutorService worker, TimerWheel timers)
+	{
+		this.roomID = roomID;
+		this.capacity = capacity;
+		this.roomManager = roomManager;
+		this.questions = questions;
+		this.multicaster = multicaster;
+		this.firstQuestion = firstQuestion;
+		numQuestions = Math.min(Server.QUESTIONS_PER_GAME, questions.getNumQuestions());
+		journal = roomManager.getJournal();
+		this.worker = worker;
+		this.timers = timers;
+
+		clients = new ClientRegistry(capacity);
+		leaderboard = new Leaderboard();
+		joinLock = new ReentrantLock();
+		usedClientIDs = new BitSet();
+		restoredScores = new HashMap<Integer, Integer>();
+
+		gameInProgress = false;
+		phase = WAITING;
+		questionNum = 0;
+		questionMulticast = false;
+		closed = new AtomicBoolean(false);
+
+		clientPolls = new BuzzArbiter(capacity);
+		arbitrationStarted = new AtomicBoolean(false);
+		answeringClientID = -1;
+
+		// Have the opening questions in memory before the game starts
+		prefetchQuestions(1);
+
+		pinger = worker.scheduleAtFixedRate(this::pingClients, Server.PING_INTERVAL_MILLIS, Server.PING_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	// Return this room's ID
+	public int getRoomID()
+	{
+		return roomID;
+	}
+
+	// Get number of currently active clients
+	public int getNumClients()
+	{
+		return clients.size();
+	}
+
+	// Get the current clients
+	public ClientRegistry getClients()
+	{
+		return clients;
+	}
+
+	// Get the room's scores in rank order
+	public Leaderboard getLeaderboard()
+	{
+		return leaderboard;
+	}
+
+	// Indicate whether the game has started
+	public boolean gameInProgress()
+	{
+		return gameInProgress;
+	}
+
+	// Name of the current phase
+	public String getPhaseName()
+	{
+		return PHASE_NAMES[phase];
+	}
+
+	// Print a message tagged with this room
+	private void log(String message)
+	{
+		System.out.println("[Room " + roomID + "] " + message);
+	}
+
+	// Pick up a game rebuilt from the journal, it carries on from the next question once started again
+	// Its players get their IDs and scores back when they rejoin, until then nobody else can take their IDs
+	void restore(int questionsPlayed, Map<Integer, Integer> scores)
+	{
+		questionNum = questionsPlayed;
+		journal(GameJournal.RESTORED, 0, questionsPlayed);
+
+		for(Map.Entry<Integer, Integer> player : scores.entrySet())
+		{
+			restoredScores.put(player.getKey(), player.getValue());
+			usedClientIDs.set(player.getKey());
+
+			journal(GameJournal.JOINED, player.getKey(), 0);
+			journal(GameJournal.SCORE, player.getKey(), player.getValue());
+		}
+
+		prefetchQuestions(questionNum + 1);
+		log("Restored after question " + questionsPlayed + " of " + numQuestions + ", " + scores.size() + " players can rejoin");
+	}
+
+	// Add a client that asked to join this room, returns false if it can't join
+	// A player rejoining after a restart passes its old ID, anyone else passes 0
+	public boolean addClient(ClientConnection client, int resumeClientID)
+	{
+		joinLock.lock();
+		try
+		{
+			if(closed.get() || phase == FINISHED)
+				return false;
+
+			Integer restoredScore = restoredScores.remove(resumeClientID);
+			int clientID;
+
+			if(restoredScore != null)
+				clientID = resumeClientID;
+
+			// Reuse IDs of clients who left before the game started, but never reuse an ID mid-game (or one kept for a player from before a restart)
+			else
+				clientID = gameInProgress ? Math.max(clients.getHighestClientID(), usedClientIDs.length() - 1) + 1 : usedClientIDs.nextClearBit(1);
+
+			// Polls can't be tracked for any more clients
+			if(clientID >= capacity)
+				return false;
+
+			usedClientIDs.set(clientID);
+
+			client.joinRoom(this, clientID, (restoredScore != null) ? restoredScore : 0);
+			journal(GameJournal.JOINED, clientID, 0);
+			log("Connection accepted from Client " + clientID + ((restoredScore != null) ? " (rejoined)" : ""));
+
+			// Send client ID to the client, and the group questions are multicast to
+			client.writeFrameToClient(Protocol.helloFrame(clientID, (multicaster != null) ? multicaster.getGroup() : null));
+
+			// Signal client to wait for next question if game has already started
+			if(gameInProgress)
+				client.writeFrameToClient(Protocol.WAIT_FRAME);
+
+			clients.add(client);
+			leaderboard.add(clientID, client.getClientScore());
+			return true;
+		}
+		finally
+		{
+			joinLock.unlock();
+		}
+	}
+
+	// Remove a client as soon as it disconnects
+	public void removeClient(ClientConnection client)
+	{
+		if(!clients.remove(client))
+			return;
+
+		journal(GameJournal.LEFT, client.getClientID(), 0);
+
+		if(gameInProgress)
+			clientPolls.removeClient(client.getClientID());
+
+		// Scores only change on the worker, so the client's entry is removed there too
+		// Its ID is only freed afterwards, or a player reusing the ID could lose their new entry to this removal
+		worker.execute(() ->
+		{
+			leaderboard.remove(client.getClientID(), client.getClientScore());
+
+			joinLock.lock();
+			try
+			{
+				usedClientIDs.clear(client.getClientID());
+			}
+			finally
+			{
+				joinLock.unlock();
+			}
+		});
+
+		log("Removing Client " + client.getClientID() + "...");
+		log("Remaining Clients: " + getNumClients());
+
+		// Don't wait for an answer that will never come
+		if(client.getClientID() == answeringClientID)
+			worker.execute(this::gradeAnswer);
+
+		if(gameInProgress && getNumClients() == 0 && !closed.get())
+		{
+			log("All clients have disconnected. Ending game...");
+			close();
+		}
+	}
+
+	// Start the game and tell every connected client
+	public void start()
+	{
+		worker.execute(() ->
+		{
+			if(phase != WAITING)
+				return;
+
+			joinLock.lock();
+			try
+			{
+				gameInProgress = true;
+				journal(GameJournal.STARTED, 0, 0);
+				writeFrameToAllClients(Protocol.START_FRAME, "start", ClientConnection.FLUSH_BATCHED);
+			}
+			finally
+			{
+				joinLock.unlock();
+			}
+
+			log("Game started");
+			nextQuestion();
+		});
+	}
+
+	// Buzz from a client stamped with its own clock, returns false if it was ignored (only a client's first buzz of the round counts)
+	public boolean buzz(int clientID, long clientTime)
+	{
+		long arrivalTime = System.nanoTime();
+
+		if(phase != POLLING)
+			return false;
+
+		ClientConnection client = clients.get(clientID);
+		if(client == null)
+			return false;
+
+		// Order by when the buzz was sent, but never before the question went out
+		long credit = TimeUnit.MILLISECONDS.toNanos(Server.BUZZ_ARBITRATION_MILLIS);
+		long sendTime = client.getClockSync().estimateSendTime(clientTime, arrivalTime, credit);
+		if(sendTime - questionTime < 0)
+			sendTime = questionTime;
+
+		if(!clientPolls.buzz(clientID, sendTime))
+			return false;
+
+		journal(GameJournal.BUZZ, clientID, sendTime);
+
+		// Buzzes sent earlier over slower links get until the end of the window to arrive
+		if(arbitrationStarted.compareAndSet(false, true))
+			worker.execute(this::startArbitration);
+
+		return true;
+	}
+
+	// Number of clients that have buzzed this round
+	public int getNumBuzzes()
+	{
+		return clientPolls.getNumBuzzes();
+	}
+
+	// Whether questions can be sent to clients through the multicast group
+	public boolean multicastsQuestions()
+	{
+		return multicaster != null;
+	}
+
+	// Resend the current question over TCP to a subscribed client whose multicast datagram never arrived
+	public void repairQuestion(ClientConnection client, int requestedQuestion)
+	{
+		worker.execute(() ->
+		{
+			// Too late to be worth showing
+			if(requestedQuestion != questionNum || !questionMulticast || phase == FINISHED)
+				return;
+
+			client.writeFrameToClient(questions.getFrame(bankQuestion(questionNum)));
+			multicaster.repaired();
+		});
+	}
+
+	// Called when a client submits an answer
+	public void answerReceived(ClientConnection client)
+	{
+		if(phase == ANSWERING && client.getClientID() == answeringClientID)
+			worker.execute(this::gradeAnswer);
+	}
+
+	// Send the next question and open polling
+	private void nextQuestion()
+	{
+		questionNum++;
+		journal(GameJournal.QUESTION, 0, questionNum);
+
+		// Clear polls for this question
+		clientPolls.reset();
+		arbitrationStarted.set(false);
+		answeringClientID = -1;
+		questionTime = System.nanoTime();
+		phase = POLLING;
+
+		// Polling closes when the buzz window ends, unless a buzz starts arbitration first
+		deadline = timers.schedule(() ->
+		{
+			log("Buzz window closed for question " + questionNum);
+			closePolling();
+		}, Server.BUZZ_WINDOW_SECONDS, TimeUnit.SECONDS, worker);
+
+		writeQuestionToAllClients(questionNum, Protocol.countdownFrame(TimeUnit.SECONDS.toMillis(Server.BUZZ_WINDOW_SECONDS)));
+
+		// Load the next questions while this one is played
+		prefetchQuestions(questionNum + 1);
+	}
+
+	// Close polling once the arbitration window after the first buzz has passed
+	private void startArbitration()
+	{
+		if(phase != POLLING)
+			return;
+
+		deadline.cancel();
+		deadline = timers.schedule(this::closePolling, Server.BUZZ_ARBITRATION_MILLIS, TimeUnit.MILLISECONDS, worker);
+	}
+
+	// Send every client a PING stamped with the server's clock, their PONGs update their clock sync
+	private void pingClients()
+	{
+		if(clients.isEmpty())
+			return;
+
+		ByteBuffer ping = Protocol.pingFrame(System.nanoTime());
+
+		for(ClientConnection client : clients)
+		{
+			client.writeFrameToClient(ping);
+		}
+	}
+
+	// Pick the client whose buzz was sent first and alert clients whether they won the poll
+	private void closePolling()
+	{
+		if(phase != POLLING)
+			return;
+
+		deadline.cancel();
+
+		// Get ID for client who won the poll
+		int ackClientID = clientPolls.getFirstBuzz();
+		journal(GameJournal.ACK, ackClientID, 0);
+
+		// Listen for the answer before telling the client it can answer
+		answeringClientID = ackClientID;
+		phase = (ackClientID != -1) ? ANSWERING : PAUSED;
+
+		Broadcast acks = ackClients(ackClientID, Protocol.countdownFrame(TimeUnit.SECONDS.toMillis(Server.ANSWER_WINDOW_SECONDS)));
+		ackTime = System.nanoTime();
+
+		// No clients polled, skip waiting for an answer
+		if(ackClientID == -1)
+		{
+			pause();
+			return;
+		}
+
+		long firstBuzzTime = clientPolls.getFirstBuzzTime();
+		acks.whenDelivered(() -> ServerMetrics.BUZZ_TO_ACK.recordSince(firstBuzzTime));
+
+		log("Client " + ackClientID + " polled first");
+
+		// A missing answer is graded as a penalty
+		deadline = timers.schedule(() ->
+		{
+			log("No answer received from Client " + answeringClientID);
+			gradeAnswer();
+		}, Server.ANSWER_WINDOW_SECONDS + Server.GRACE_SECONDS, TimeUnit.SECONDS, worker);
+	}
+
+	// Grade the answering client's answer and tell everyone the result
+	private void gradeAnswer()
+	{
+		if(phase != ANSWERING)
+			return;
+
+		deadline.cancel();
+		ServerMetrics.ANSWER_WAIT.recordSince(ackTime);
+
+		// Get status of client's answer (e.g. correct, incorrect)
+		byte answerStatus = isClientAnswerCorrect(answeringClientID, questions.getAnswer(bankQuestion(questionNum)));
+
+		// Inform clients of answer status
+		informClientsOfStatus(answerStatus, answeringClientID);
+
+		// The grade and the score it leads to go in one record, so a crash can't keep one without the other
+		ClientConnection answeringClient = clients.get(answeringClientID);
+		int score = (answeringClient != null) ? answeringClient.getClientScore() : 0;
+		journal(GameJournal.GRADED, answeringClientID, ((long)answerStatus << 32) | (score & 0xFFFFFFFFL));
+
+		pause();
+	}
+
+	// Wait a few seconds before issuing next question (or ending game)
+	private void pause()
+	{
+		phase = PAUSED;
+		pushLeaderboard();
+
+		// The round's result and standings go out together
+		flushClients();
+
+		deadline = timers.schedule(() ->
+		{
+			// If there are more questions, ready clients for next question
+			if(questionNum < numQuestions)
+			{
+				writeFrameToAllClients(Protocol.NEXT_FRAME, "next", ClientConnection.FLUSH_BATCHED);
+				nextQuestion();
+			}
+
+			// If this was the last question, signal the clients that the game is over
+			else
+				endGame();
+		}, Server.PAUSE_MILLIS, TimeUnit.MILLISECONDS, worker);
+	}
+
+	// Tell clients who won, then close the room once they've received the results
+	private void endGame()
+	{
+		phase = FINISHED;
+
+		// Obtain clientID of the winning client
+		ArrayList<Integer> winningClientIDs = getWinners();
+
+		// Alert clients that game has ended, and alert winning client that they won
+		Broadcast results = writeEndToAllClients(leaderboard.getTopScore());
+
+		// Print winner(s)
+		if(winningClientIDs.size() > 1)
+		{
+			StringBuilder winners = new StringBuilder("Winners: ");
+
+			for(int i = 0; i < winningClientIDs.size() - 1; i++)
+			{
+				winners.append("Client " + winningClientIDs.get(i) + ", ");
+			}
+
+			winners.append("Client " + winningClientIDs.get(winningClientIDs.size() - 1));
+			log(winners.toString());
+		}
+
+		// Single winner
+		else if(winningClientIDs.size() == 1)
+			log("WINNER: Client " + winningClientIDs.get(0));
+
+		// Give clients a chance to receive the results before the room closes
+		results.whenDelivered(this::close);
+		deadline = timers.schedule(this::closeRoom, 5, TimeUnit.SECONDS, worker);
+	}
+
+	// Disconnect every client and remove the room, from any thread
+	public void close()
+	{
+		worker.execute(this::closeRoom);
+	}
+
+	// Runs on the worker, so no deadline can be scheduled behind the room's back once it's closed
+	private void closeRoom()
+	{
+		if(!closed.compareAndSet(false, true))
+			return;
+
+		phase = FINISHED;
+
+		pinger.cancel(false);
+		if(deadline != null)
+			deadline.cancel();
+
+		for(ClientConnection client : clients)
+		{
+			client.close();
+		}
+
+		journal(GameJournal.CLOSED, 0, 0);
+		roomManager.removeRoom(this);
+		log("Finished");
+	}
+
+	// Record one of this room's game events
+	private void journal(byte type, int clientID, long value)
+	{
+		if(journal != null)
+			journal.append(type, roomID, clientID, value);
+	}
+
+	// Describe a broadcast from this room
+	private String describe(String message)
+	{
+		return "room " + roomID + " " + message;
+	}
+
+	// Write the same frame to all current clients, batched frames wait for the next time-critical frame or flushClients()
+	public Broadcast writeFrameToAllClients(ByteBuffer frame, String description, int flushPolicy)
+	{
+		Broadcast broadcast = new Broadcast(describe(description));
+
+		for(ClientConnection client : clients)
+		{
+			client.writeFrameToClient(frame, broadcast, flushPolicy);
+		}
+
+		return broadcast.complete();
+	}
+
+	// Write every client's batched frames, called at the end of a phase step that didn't end with a time-critical frame
+	public void flushClients()
+	{
+		for(ClientConnection client : clients)
+		{
+			client.flushBatched();
+		}
+	}
+
+	// Write two shared frames to all current clients, each client gets both in one write
+	public Broadcast writeFramesToAllClients(ByteBuffer first, ByteBuffer second, String description)
+	{
+		Broadcast broadcast = new Broadcast(describe(description));
+
+		for(ClientConnection client : clients)
+		{
+			client.writeFramesToClient(first, second, broadcast);
+		}
+
+		return broadcast.complete();
+	}
+
+	// Write a framed question to all current clients, every client shares the same buffer
+	// With multicast the question goes out once, and subscribed clients are only told its number
+	public Broadcast writeQuestionToAllClients(int questionNum, ByteBuffer countdown)
+	{
+		ByteBuffer question = questions.getFrame(bankQuestion(questionNum));
+
+		questionMulticast = (multicaster != null && multicaster.send(roomID, questionNum, question));
+		if(!questionMulticast)
+			return writeFramesToAllClients(question, countdown, "question " + questionNum);
+
+		Broadcast broadcast = new Broadcast(describe("question " + questionNum));
+		ByteBuffer announce = Protocol.announceFrame(questionNum);
+
+		for(ClientConnection client : clients)
+		{
+			client.writeFramesToClient(client.isSubscribed() ? announce : question, countdown, broadcast);
+		}
+
+		return broadcast.complete();
+	}
+
+	// Start loading this game's questions from the given one onwards, so rounds never wait on the disk
+	private void prefetchQuestions(int fromQuestion)
+	{
+		for(int n = fromQuestion; n < fromQuestion + PREFETCH_AHEAD && n <= numQuestions; n++)
+			questions.prefetch(bankQuestion(n));
+	}
+
+	// Position in the bank of this game's nth question
+	private int bankQuestion(int questionNum)
+	{
+		return (firstQuestion - 1 + questionNum - 1) % questions.getNumQuestions() + 1;
+	}
+
+	// Alert clients whether they won the poll, or if nobody polled
+	public Broadcast ackClients(int ackClientID, ByteBuffer countdown)
+	{
+		// At least one client polled
+		if(ackClientID != -1)
+		{
+			Broadcast broadcast = new Broadcast(describe("acks"));
+
+			for(ClientConnection client : clients)
+			{
+				// Alert client with the fastest poll that they can answer
+				if(client.getClientID() == ackClientID)
+					client.writeFramesToClient(Protocol.ACK_FRAME, countdown, broadcast);
+
+				// Alert other clients that they were late in polling
+				else
+					client.writeFramesToClient(Protocol.NEGATIVE_ACK_FRAME, countdown, broadcast);
+			}
+
+			return broadcast.complete();
+		}
+
+		// No clients polled
+		else
+		{
+			return writeFrameToAllClients(Protocol.NO_POLL_FRAME, "no-poll", ClientConnection.FLUSH_BATCHED);
+		}
+	}
+
+	// Obtain and check answer from client who won polling, returns whether they answered correctly
+	public byte isClientAnswerCorrect(int clientID, String correctAnswer)
+	{
+		// Obtain answer from client with the fastest poll
+		ClientConnection client = clients.get(clientID);
+		String answer = (client != null) ? client.getClientAnswer() : null;
+
+		if(journal != null && answer != null)
+			journal.append(GameJournal.ANSWER, roomID, clientID, 0, answer);
+
+		// Client did not answer (or left before answering)
+		if(answer == null || answer.isEmpty())
+			return Protocol.PENALTY;
+
+		// Client answered correctly
+		else if(answer.equals(correctAnswer))
+			return Protocol.CORRECT;
+
+		// Client answered incorrectly
+		else
+			return Protocol.INCORRECT;
+	}
+
+	// Tell each client whether the question was answered correctly, sent with the standings that follow
+	public Broadcast informClientsOfStatus(byte status, int ackClientID)
+	{
+		Broadcast broadcast = new Broadcast(describe("status"));
+
+		// Every client gets the same frame and checks whether it was the one answering
+		ByteBuffer statusFrame = Protocol.share(Protocol.statusFrame(status, ackClientID));
+
+		// Update score of the answering client
+		ClientConnection answeringClient = clients.get(ackClientID);
+		if(answeringClient != null)
+			answeringClient.updateClientScore(status);
+
+		for(ClientConnection client : clients)
+		{
+			client.writeFrameToClient(statusFrame, broadcast, ClientConnection.FLUSH_BATCHED);
+		}
+
+		return broadcast.complete();
+	}
+
+	// Get client IDs of the winning clients
+	public ArrayList<Integer> getWinners()
+	{
+		return leaderboard.getWinners();
+	}
+
+	// Send every client the leaders along with its own rank and score (batched, flushed once the round's result is out)
+	public Broadcast pushLeaderboard()
+	{
+		Broadcast broadcast = new Broadcast(describe("leaderboard"));
+
+		// Every client's frame ends with the same leaders
+		ByteBuffer leaders = leaderboard.topEntries(Leaderboard.TOP_SIZE);
+		int numPlayers = leaderboard.size();
+
+		leaderboard.forEachRanked((clientID, score, rank) ->
+		{
+			ClientConnection client = clients.get(clientID);
+
+			if(client != null)
+				client.writeFrameToClient(Protocol.leaderboardHeader(leaders.remaining(), rank, score, numPlayers), leaders, broadcast, ClientConnection.FLUSH_BATCHED);
+		});
+
+		return broadcast.complete();
+	}
+
+	// Alert clients that game is over, and whether they won
+	public Broadcast writeEndToAllClients(int winningScore)
+	{
+		Broadcast broadcast = new Broadcast(describe("results"));
+
+		for(ClientConnection client : clients)
+		{
+			// Client has the highest score for the game
+			if(client.getClientScore() == winningScore)
+				client.writeFrameToClient(Protocol.WIN_FRAME, broadcast, ClientConnection.FLUSH_NOW);
+
+			// Client did not win
+			else
+				client.writeFrameToClient(Protocol.LOSE_FRAME, broadcast, ClientConnection.FLUSH_NOW);
+		}
+
+		return broadcast.complete();
+	}
+}
@@ -0,0 +1,122 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// Lock-free histogram of latencies in nanoseconds with about 3% precision at every magnitude
+// Values are counted in log-linear buckets: 32 linear sub-buckets per power of two, so recording never allocates
+class LatencyHistogram
+{
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	// Enough buckets to hold any positive long
+	private static final int NUM_BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts;
+	private final LongAdder count;
+	private final LongAdder sum;
+	private final LongAccumulator max;
+
+	public LatencyHistogram()
+	{
+		counts = new AtomicLongArray(NUM_BUCKETS);
+		count = new LongAdder();
+		sum = new LongAdder();
+		max = new LongAccumulator(Math::max, 0);
+	}
+
+	// Record one value (negative values are counted as 0)
+	public void record(long nanos)
+	{
+		long value = Math.max(0, nanos);
+
+		counts.incrementAndGet(bucketOf(value));
+		count.increment();
+		sum.add(value);
+		max.accumulate(value);
+	}
+
+	// Record the time elapsed since a System.nanoTime() reading
+	public void recordSince(long startNanos)
+	{
+		record(System.nanoTime() - startNanos);
+	}
+
+	// Number of values recorded
+	public long getCount()
+	{
+		return count.sum();
+	}
+
+	// Largest value recorded
+	public long getMax()
+	{
+		return max.get();
+	}
+
+	// Total of the values recorded
+	public long getSum()
+	{
+		return sum.sum();
+	}
+
+	// Mean of the values recorded (0 if none have been)
+	public double getMean()
+	{
+		long n = count.sum();
+		return (n == 0) ? 0 : (double)sum.sum() / n;
+	}
+
+	// Value that the given percentage of recorded values are at or below (reported as the top of its bucket)
+	public long getValueAtPercentile(double percentile)
+	{
+		long n = count.sum();
+		if(n == 0)
+			return 0;
+
+		long target = Math.max(1, (long)Math.ceil(n * percentile / 100.0));
+		long seen = 0;
+
+		for(int bucket = 0; bucket < NUM_BUCKETS; bucket++)
+		{
+			seen += counts.get(bucket);
+
+			if(seen >= target)
+				return Math.min(highestValueIn(bucket), getMax());
+		}
+
+		return getMax();
+	}
+
+	// One line summary in milliseconds
+	public String summary()
+	{
+		return String.format("n=%d mean=%.2f p50=%.2f p90=%.2f p99=%.2f p99.9=%.2f max=%.2f ms", getCount(), getMean() / 1e6,
+				getValueAtPercentile(50) / 1e6, getValueAtPercentile(90) / 1e6, getValueAtPercentile(99) / 1e6,
+				getValueAtPercentile(99.9) / 1e6, getMax() / 1e6);
+	}
+
+	// Values below 32 get a bucket each, above that each power of two is split into 32 equal sub-buckets
+	private static int bucketOf(long value)
+	{
+		if(value < SUB_BUCKETS)
+			return (int)value;
+
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int)(value >>> (exponent - SUB_BUCKET_BITS)) - SUB_BUCKETS;
+
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	// Largest value that falls in a bucket
+	private static long highestValueIn(int bucket)
+	{
+		if(bucket < SUB_BUCKETS)
+			return bucket;
+
+		int shift = bucket / SUB_BUCKETS - 1;
+		long lowest = (long)(bucket % SUB_BUCKETS + SUB_BUCKETS) << shift;
+
+		return lowest + (1L << shift) - 1;
+	}
+}
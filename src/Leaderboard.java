@@ -0,0 +1,143 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// A room's scores kept in rank order, so ranks, the leaders and the winners never need a scan of every client
+// Each player is one entry packing (score, clientID) into a long that sorts best first, updates are O(log n)
+class Leaderboard
+{
+	// Number of leaders pushed to every client after each round
+	static final int TOP_SIZE = 5;
+
+	private final ConcurrentSkipListSet<Long> entries;
+
+	// Counted separately since the set's size() walks every entry
+	private final AtomicInteger size;
+
+	// Called for each player in rank order
+	interface RankVisitor
+	{
+		void visit(int clientID, int score, int rank);
+	}
+
+	public Leaderboard()
+	{
+		entries = new ConcurrentSkipListSet<Long>();
+		size = new AtomicInteger(0);
+	}
+
+	// Higher scores sort first, ties are broken by client ID
+	private static long entry(int clientID, int score)
+	{
+		return ((long)-score << 32) | clientID;
+	}
+
+	private static int scoreOf(long entry)
+	{
+		return -(int)(entry >> 32);
+	}
+
+	private static int clientIDOf(long entry)
+	{
+		return (int)entry;
+	}
+
+	// Add a player with their current score
+	public void add(int clientID, int score)
+	{
+		if(entries.add(entry(clientID, score)))
+			size.incrementAndGet();
+	}
+
+	// Remove a player
+	public void remove(int clientID, int score)
+	{
+		if(entries.remove(entry(clientID, score)))
+			size.decrementAndGet();
+	}
+
+	// Move a player whose score changed
+	public void move(int clientID, int oldScore, int newScore)
+	{
+		if(entries.remove(entry(clientID, oldScore)))
+			entries.add(entry(clientID, newScore));
+	}
+
+	// Number of players on the board
+	public int size()
+	{
+		return size.get();
+	}
+
+	// Best score on the board (0 if nobody is playing)
+	public int getTopScore()
+	{
+		Long first = entries.ceiling(Long.MIN_VALUE);
+
+		return (first == null) ? 0 : scoreOf(first);
+	}
+
+	// Client IDs of every player sharing the best score
+	public ArrayList<Integer> getWinners()
+	{
+		ArrayList<Integer> winners = new ArrayList<Integer>();
+		int topScore = 0;
+
+		for(long entry : entries)
+		{
+			if(winners.isEmpty())
+				topScore = scoreOf(entry);
+
+			else if(scoreOf(entry) != topScore)
+				break;
+
+			winners.add(clientIDOf(entry));
+		}
+
+		return winners;
+	}
+
+	// Visit the players best first, players with the same score share a rank
+	public void forEachRanked(RankVisitor visitor)
+	{
+		int position = 0;
+		int rank = 0;
+		int previousScore = 0;
+
+		for(long entry : entries)
+		{
+			int score = scoreOf(entry);
+			position++;
+
+			if(position == 1 || score != previousScore)
+				rank = position;
+
+			visitor.visit(clientIDOf(entry), score, rank);
+			previousScore = score;
+		}
+	}
+
+	// The leaders as [count: 1] then [clientID: 4][score: 4] for each, the part of a LEADERBOARD frame every client shares
+	public ByteBuffer topEntries(int count)
+	{
+		ByteBuffer top = ByteBuffer.allocate(1 + count * 8);
+		top.put((byte)0);
+
+		int numEntries = 0;
+		for(long entry : entries)
+		{
+			if(numEntries == count)
+				break;
+
+			top.putInt(clientIDOf(entry));
+			top.putInt(scoreOf(entry));
+			numEntries++;
+		}
+
+		top.put(0, (byte)numEntries);
+		top.flip();
+
+		return Protocol.share(top);
+	}
+}
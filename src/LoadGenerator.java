@@ -0,0 +1,834 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Headless load generator: many bots join one room and play it over TCP+UDP, speaking the same protocol as ClientWindow
+// Usage: java LoadGenerator [bots=1000] [host=127.0.0.1] [port=3849] [room=1] [buzz=uniform:0-5000]
+//                           [answer=uniform:500-5000] [buzzChance=0.25] [threads=2] [multicast=false] [multicastLoss=0]
+//                           [reconnects=30]
+// Delays are in milliseconds: fixed:MS, uniform:MIN-MAX, exp:MEAN or normal:MEAN,STDDEV
+// With multicast=true the bots share one socket in the server's multicast group, like players on one LAN host,
+// and multicastLoss drops that fraction of the question datagrams to exercise repairs over TCP
+// A bot that loses its connection tries to rejoin with its client ID up to reconnects times a second, as ClientWindow does
+public class LoadGenerator
+{
+	// Settings
+	final String host;
+	final int port;
+	final int roomID;
+	final int numBots;
+	final BotDelay buzzDelay;
+	final BotDelay answerDelay;
+	final double buzzChance;
+	final int numReaders;
+	final boolean multicast;
+	final double multicastLoss;
+	final int reconnectAttempts;
+
+	// Shared by every bot
+	final DatagramChannel udpChannel;
+	final InetSocketAddress serverAddress;
+	final ScheduledExecutorService timers;
+
+	// Question payloads received from the multicast group by question number (joined when the first bot learns the group)
+	private volatile DatagramChannel multicastChannel;
+	private final Map<Integer, ByteBuffer> multicastQuestions;
+
+	// Latencies seen by the bots
+	final LatencyHistogram buzzToAck;
+	final LatencyHistogram answerToStatus;
+
+	// LoadBot progress
+	final AtomicInteger numConnected;
+	final AtomicInteger numRefused;
+	final AtomicInteger numBuzzes;
+	final AtomicInteger numAnswers;
+	final AtomicInteger numWins;
+	final AtomicInteger numMulticastQuestions;
+	final AtomicInteger numRepairs;
+	final AtomicInteger numRejoined;
+	final AtomicInteger numResumed;
+	final CountDownLatch botsFinished;
+
+	public static void main(String[] args) throws Exception
+	{
+		Map<String, String> settings = new HashMap<String, String>();
+
+		for(String arg : args)
+		{
+			String[] setting = arg.split("=", 2);
+
+			if(setting.length != 2)
+			{
+				System.err.println("Settings must look like name=value: " + arg);
+				System.exit(1);
+			}
+
+			settings.put(setting[0], setting[1]);
+		}
+
+		new LoadGenerator(settings).run();
+	}
+
+	public LoadGenerator(Map<String, String> settings) throws IOException
+	{
+		host = settings.getOrDefault("host", "127.0.0.1");
+		port = Integer.parseInt(settings.getOrDefault("port", "3849"));
+		roomID = Integer.parseInt(settings.getOrDefault("room", "1"));
+		numBots = Integer.parseInt(settings.getOrDefault("bots", "1000"));
+		buzzDelay = BotDelay.parse(settings.getOrDefault("buzz", "uniform:0-5000"));
+		answerDelay = BotDelay.parse(settings.getOrDefault("answer", "uniform:500-5000"));
+		buzzChance = Double.parseDouble(settings.getOrDefault("buzzChance", "0.25"));
+		numReaders = Integer.parseInt(settings.getOrDefault("threads", "2"));
+		multicast = Boolean.parseBoolean(settings.getOrDefault("multicast", "false"));
+		multicastLoss = Double.parseDouble(settings.getOrDefault("multicastLoss", "0"));
+		reconnectAttempts = Integer.parseInt(settings.getOrDefault("reconnects", "30"));
+
+		udpChannel = DatagramChannel.open();
+		serverAddress = new InetSocketAddress(host, port);
+		timers = Executors.newScheduledThreadPool(2, task ->
+		{
+			Thread thread = new Thread(task, "BotTimer");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		multicastQuestions = new ConcurrentHashMap<Integer, ByteBuffer>();
+
+		buzzToAck = new LatencyHistogram();
+		answerToStatus = new LatencyHistogram();
+
+		numConnected = new AtomicInteger();
+		numRefused = new AtomicInteger();
+		numBuzzes = new AtomicInteger();
+		numAnswers = new AtomicInteger();
+		numWins = new AtomicInteger();
+		numMulticastQuestions = new AtomicInteger();
+		numRepairs = new AtomicInteger();
+		numRejoined = new AtomicInteger();
+		numResumed = new AtomicInteger();
+		botsFinished = new CountDownLatch(numBots);
+	}
+
+	// Connect every bot, play until they've all finished, then print what they saw
+	public void run() throws Exception
+	{
+		Selector[] selectors = new Selector[numReaders];
+		for(int i = 0; i < selectors.length; i++)
+			selectors[i] = Selector.open();
+
+		List<LoadBot> bots = new ArrayList<LoadBot>();
+
+		for(int i = 0; i < numBots; i++)
+		{
+			LoadBot bot = new LoadBot(this, SocketChannel.open(serverAddress));
+			bot.send(Protocol.frame(Protocol.CLIENT_HELLO, Protocol.clientHello(roomID)));
+			bot.register(selectors[i % selectors.length]);
+			bots.add(bot);
+		}
+
+		System.out.println("Connected " + numBots + " bots to room " + roomID + " on " + host + ":" + port
+				+ ", start the game from the server console");
+
+		for(int i = 0; i < selectors.length; i++)
+		{
+			Selector selector = selectors[i];
+			Thread reader = new Thread(() -> readLoop(selector), "BotReader-" + i);
+			reader.setDaemon(true);
+			reader.start();
+		}
+
+		// Print progress until every bot has finished
+		while(!botsFinished.await(5, TimeUnit.SECONDS))
+		{
+			System.out.printf("%d joined, %d refused, %d finished, %d buzzes, %d answers%n", numConnected.get(), numRefused.get(),
+					numBots - botsFinished.getCount(), numBuzzes.get(), numAnswers.get());
+		}
+
+		report(bots);
+		System.exit(0);
+	}
+
+	// Read and handle frames for every bot registered with this selector
+	private void readLoop(Selector selector)
+	{
+		ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+
+		try
+		{
+			while(true)
+			{
+				selector.select();
+
+				Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
+				while(keyIterator.hasNext())
+				{
+					SelectionKey key = keyIterator.next();
+					keyIterator.remove();
+
+					if(key.isValid() && key.isReadable())
+						((LoadBot)key.attachment()).onReadable(readBuffer);
+				}
+			}
+		}
+
+		catch(IOException e)
+		{
+			System.err.println("ERROR in bot reader");
+			e.printStackTrace();
+		}
+	}
+
+	// Print the latencies the bots saw
+	private void report(List<LoadBot> bots)
+	{
+		// No server timestamps are sent, so question delivery is measured as how long after the first bot each bot got the question
+		LatencyHistogram questionSpread = new LatencyHistogram();
+		for(int question = 0; question < Server.QUESTIONS_PER_GAME; question++)
+		{
+			long first = Long.MAX_VALUE;
+			for(LoadBot bot : bots)
+			{
+				if(bot.getQuestionArrival(question) != 0)
+					first = Math.min(first, bot.getQuestionArrival(question));
+			}
+
+			for(LoadBot bot : bots)
+			{
+				if(bot.getQuestionArrival(question) != 0)
+					questionSpread.record(bot.getQuestionArrival(question) - first);
+			}
+		}
+
+		System.out.println();
+		System.out.println("Bots: " + numConnected.get() + " joined, " + numRefused.get() + " refused, " + numWins.get() + " won");
+		System.out.println("Buzzes: " + numBuzzes.get() + ", answers: " + numAnswers.get());
+		if(numRejoined.get() > 0)
+			System.out.println("Reconnects: " + numRejoined.get() + " rejoined, " + numResumed.get() + " kept their client ID");
+		if(multicastChannel != null)
+			System.out.println("Multicast: " + numMulticastQuestions.get() + " questions received, " + numRepairs.get() + " repairs over TCP");
+		System.out.println("Question delivery (after first bot): " + questionSpread.summary());
+		System.out.println("Buzz to ack:                         " + buzzToAck.summary());
+		System.out.println("Answer to status:                    " + answerToStatus.summary());
+	}
+
+	// Join the server's multicast group on the interface that reaches the server, once for every bot
+	// Returns false if multicast is turned off or the group can't be joined
+	synchronized boolean joinMulticast(InetSocketAddress group, InetSocketAddress localAddress)
+	{
+		if(!multicast)
+			return false;
+
+		if(multicastChannel != null)
+			return true;
+
+		try
+		{
+			NetworkInterface networkInterface = NetworkInterface.getByInetAddress(localAddress.getAddress());
+			if(networkInterface == null)
+				throw new IOException("no interface for " + localAddress.getAddress());
+
+			StandardProtocolFamily family = (group.getAddress().getAddress().length == 4) ? StandardProtocolFamily.INET : StandardProtocolFamily.INET6;
+			DatagramChannel channel = DatagramChannel.open(family);
+			channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+			channel.bind(new InetSocketAddress(group.getPort()));
+			channel.join(group.getAddress(), networkInterface);
+			multicastChannel = channel;
+		}
+
+		catch(IOException e)
+		{
+			System.err.println("ERROR joining multicast group " + group + ", bots will get questions over TCP: " + e.getMessage());
+			return false;
+		}
+
+		Thread receiver = new Thread(this::receiveMulticast, "BotMulticast");
+		receiver.setDaemon(true);
+		receiver.start();
+
+		System.out.println("Joined multicast group " + group);
+		return true;
+	}
+
+	// Keep every question multicast to this room until the bots are done with it
+	private void receiveMulticast()
+	{
+		ByteBuffer datagram = ByteBuffer.allocateDirect(Protocol.MAX_MULTICAST_SIZE);
+
+		try
+		{
+			while(true)
+			{
+				datagram.clear();
+				multicastChannel.receive(datagram);
+				datagram.flip();
+
+				if(datagram.remaining() < Protocol.MULTICAST_HEADER_SIZE || ThreadLocalRandom.current().nextDouble() < multicastLoss)
+					continue;
+
+				int questionNum = datagram.getInt(4);
+				ByteBuffer payload = Protocol.multicastQuestion(datagram, roomID, questionNum);
+
+				if(payload != null)
+				{
+					ByteBuffer copy = ByteBuffer.allocate(payload.remaining()).put(payload).flip();
+					multicastQuestions.put(questionNum, copy);
+					numMulticastQuestions.incrementAndGet();
+				}
+			}
+		}
+
+		catch(IOException e)
+		{
+			System.err.println("ERROR receiving multicast questions: " + e.getMessage());
+		}
+	}
+
+	// Payload of a question received from the multicast group, or null if it hasn't arrived
+	ByteBuffer getMulticastQuestion(int questionNum)
+	{
+		ByteBuffer payload = multicastQuestions.get(questionNum);
+
+		return (payload != null) ? payload.duplicate() : null;
+	}
+
+	// Send a datagram to the server's UDP port
+	void sendDatagram(ByteBuffer datagram)
+	{
+		try
+		{
+			udpChannel.send(datagram.duplicate(), serverAddress);
+		}
+
+		catch(IOException e)
+		{
+			System.err.println("ERROR sending datagram: " + e.getMessage());
+		}
+	}
+}
+
+// One simulated player, frames are handled on a reader thread and delayed actions run on the timers
+class LoadBot
+{
+	private final LoadGenerator generator;
+	private SocketChannel channel;
+	private SelectionKey key;
+	private Selector selector;
+
+	// Incoming bytes that haven't formed a full frame yet
+	private ByteBuffer inbound;
+
+	private int clientID;
+	private boolean waitingForNext;
+	private volatile boolean finished;
+
+	// Set while the connection is down and the bot is trying to get back into the room
+	private boolean reconnecting;
+
+	// How often a bot that lost its connection tries again
+	private static final long RECONNECT_INTERVAL_MILLIS = 1000;
+
+	// Prebuilt buzz datagram, only its send time changes
+	private ByteBuffer buzzDatagram;
+
+	// How long an announced question's datagram may take before asking for it over TCP, as ClientWindow does
+	private static final long REPAIR_WAIT_MILLIS = 100;
+
+	// Current round
+	private int questionNum;
+	private volatile Question question;
+	private volatile boolean repairing;
+	private boolean polling;
+	private volatile long buzzSentAt;
+	private volatile long answerSentAt;
+	private final List<ScheduledFuture<?>> pending;
+
+	// When each question arrived (System.nanoTime(), 0 if it never did)
+	private final long[] questionArrivals;
+
+	LoadBot(LoadGenerator generator, SocketChannel channel)
+	{
+		this.generator = generator;
+		this.channel = channel;
+
+		inbound = ByteBuffer.allocate(1024);
+		clientID = -1;
+		waitingForNext = false;
+		finished = false;
+		reconnecting = false;
+
+		questionNum = 0;
+		pending = new ArrayList<ScheduledFuture<?>>();
+		questionArrivals = new long[Server.QUESTIONS_PER_GAME];
+	}
+
+	// Start reading on a reader's selector
+	void register(Selector selector) throws IOException
+	{
+		this.selector = selector;
+		channel.configureBlocking(false);
+		key = channel.register(selector, SelectionKey.OP_READ, this);
+	}
+
+	long getQuestionArrival(int question)
+	{
+		return questionArrivals[question];
+	}
+
+	// Write a frame to the server (frames are tiny, so a full socket buffer only needs a brief wait)
+	synchronized void send(ByteBuffer frame)
+	{
+		try
+		{
+			while(frame.hasRemaining())
+			{
+				if(channel.write(frame) == 0)
+					Thread.onSpinWait();
+			}
+		}
+
+		catch(IOException e)
+		{
+			connectionLost();
+		}
+	}
+
+	// Called by the reader when the server has sent data
+	void onReadable(ByteBuffer readBuffer)
+	{
+		try
+		{
+			readBuffer.clear();
+
+			if(channel.read(readBuffer) == -1)
+			{
+				connectionLost();
+				return;
+			}
+
+			readBuffer.flip();
+
+			// Grow the inbound buffer if this read doesn't fit
+			if(inbound.remaining() < readBuffer.remaining())
+			{
+				ByteBuffer larger = ByteBuffer.allocate(inbound.position() + readBuffer.remaining());
+				inbound.flip();
+				larger.put(inbound);
+				inbound = larger;
+			}
+
+			inbound.put(readBuffer);
+			inbound.flip();
+
+			int frameSize;
+			while(!finished && (frameSize = Protocol.completeFrameSize(inbound)) != -1)
+			{
+				int frameEnd = inbound.position() + frameSize;
+				byte opcode = inbound.get();
+
+				inbound.position(inbound.position() + 2);
+				ByteBuffer payload = inbound.slice();
+				payload.limit(frameSize - Protocol.HEADER_SIZE);
+				inbound.position(frameEnd);
+
+				handleFrame(opcode, payload);
+			}
+
+			inbound.compact();
+		}
+
+		catch(IOException e)
+		{
+			connectionLost();
+		}
+	}
+
+	// React to a frame the same way ClientWindow does
+	private void handleFrame(byte opcode, ByteBuffer payload)
+	{
+		long now = System.nanoTime();
+
+		if(opcode == Protocol.HELLO)
+		{
+			payload.get();
+			int helloClientID = payload.getInt();
+
+			if(clientID == -1)
+				generator.numConnected.incrementAndGet();
+
+			// Back in the room after a reconnect, only a room restored after a restart gives the bot its old ID
+			else
+			{
+				generator.numRejoined.incrementAndGet();
+				if(helloClientID == clientID)
+					generator.numResumed.incrementAndGet();
+			}
+
+			clientID = helloClientID;
+			buzzDatagram = ByteBuffer.wrap(Protocol.datagram(Protocol.BUZZ, generator.roomID, clientID, 0));
+
+			InetSocketAddress group = Protocol.multicastGroup(payload);
+			if(group != null && generator.joinMulticast(group, localAddress()))
+				send(Protocol.frame(Protocol.SUBSCRIBE));
+		}
+
+		else if(opcode == Protocol.REFUSED)
+		{
+			if(generator.numRefused.getAndIncrement() == 0)
+				System.out.println("Refused: " + Protocol.decodeString(payload));
+
+			finish();
+		}
+
+		// Answered straight away, even while sitting out a round
+		else if(opcode == Protocol.PING)
+			send(Protocol.frame(Protocol.PONG, Protocol.pong(payload.getLong(), System.nanoTime())));
+
+		// Game already started, sit out until the next question
+		else if(opcode == Protocol.WAIT)
+			waitingForNext = true;
+
+		else if(waitingForNext)
+		{
+			if(opcode == Protocol.NEXT)
+				waitingForNext = false;
+		}
+
+		// A question, or the one this bot asked to have resent
+		else if(opcode == Protocol.QUESTION)
+		{
+			if(repairing)
+				repairing = false;
+			else
+				startRound();
+
+			showQuestion(payload, now);
+		}
+
+		// The question was multicast, take it from the group or ask for it once it's clearly missing
+		else if(opcode == Protocol.ANNOUNCE)
+		{
+			int announced = payload.getInt();
+			ByteBuffer multicast = generator.getMulticastQuestion(announced);
+
+			startRound();
+
+			if(multicast != null)
+				showQuestion(multicast, now);
+			else
+				schedule(() -> repair(announced), REPAIR_WAIT_MILLIS);
+		}
+
+		// The question's buzz window, maybe buzz before it closes
+		else if(opcode == Protocol.COUNTDOWN)
+		{
+			long windowMillis = payload.getInt();
+
+			if(polling && ThreadLocalRandom.current().nextDouble() < generator.buzzChance)
+				schedule(this::buzz, Math.min(generator.buzzDelay.nextMillis(), windowMillis - 1));
+
+			polling = false;
+		}
+
+		// Polling closed, buzz-to-ack covers the arbitration window after the first buzz plus the server's reaction
+		else if(opcode == Protocol.ACK || opcode == Protocol.NEGATIVE_ACK || opcode == Protocol.NO_POLL)
+		{
+			cancelPending();
+
+			if(buzzSentAt != 0)
+				generator.buzzToAck.record(now - buzzSentAt);
+
+			if(opcode == Protocol.ACK)
+				schedule(this::answer, Math.min(generator.answerDelay.nextMillis(), Server.ANSWER_WINDOW_SECONDS * 1000 - 1));
+		}
+
+		else if(opcode == Protocol.STATUS)
+		{
+			if(answerSentAt != 0)
+				generator.answerToStatus.record(now - answerSentAt);
+
+			answerSentAt = 0;
+		}
+
+		else if(opcode == Protocol.NEXT)
+			cancelPending();
+
+		else if(opcode == Protocol.END)
+		{
+			if(payload.get() == 1)
+				generator.numWins.incrementAndGet();
+
+			finish();
+		}
+	}
+
+	// A new question has gone out, the COUNTDOWN after it says how long polling stays open
+	private void startRound()
+	{
+		questionNum++;
+		question = null;
+		repairing = false;
+		buzzSentAt = 0;
+		answerSentAt = 0;
+		polling = true;
+	}
+
+	// The current question's text has arrived
+	private void showQuestion(ByteBuffer payload, long now)
+	{
+		if(questionNum > 0 && questionNum <= questionArrivals.length)
+			questionArrivals[questionNum - 1] = now;
+
+		question = Question.decode(payload);
+	}
+
+	// Ask for an announced question over TCP if its datagram still hasn't arrived (runs on a timer)
+	private void repair(int announced)
+	{
+		ByteBuffer multicast = generator.getMulticastQuestion(announced);
+
+		if(multicast != null)
+		{
+			showQuestion(multicast, System.nanoTime());
+			return;
+		}
+
+		repairing = true;
+		generator.numRepairs.incrementAndGet();
+		send(Protocol.frame(Protocol.REPAIR, Protocol.repair(announced)));
+	}
+
+	// Address this bot connects from, which picks the interface to join the multicast group on
+	private InetSocketAddress localAddress()
+	{
+		try
+		{
+			return (InetSocketAddress)channel.getLocalAddress();
+		}
+		catch(IOException e)
+		{
+			return new InetSocketAddress(0);
+		}
+	}
+
+	private void buzz()
+	{
+		buzzSentAt = System.nanoTime();
+		buzzDatagram.putLong(Protocol.DATAGRAM_SIZE - 8, buzzSentAt);
+		generator.numBuzzes.incrementAndGet();
+		generator.sendDatagram(buzzDatagram);
+	}
+
+	// Pick one of the four options at random
+	private void answer()
+	{
+		String answer = (question != null) ? question.getOption(ThreadLocalRandom.current().nextInt(Question.NUM_OPTIONS)) : "";
+
+		answerSentAt = System.nanoTime();
+		generator.numAnswers.incrementAndGet();
+		send(Protocol.frame(Protocol.ANSWER, answer.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	private synchronized void schedule(Runnable task, long delayMillis)
+	{
+		pending.add(generator.timers.schedule(task, Math.max(0, delayMillis), TimeUnit.MILLISECONDS));
+	}
+
+	private synchronized void cancelPending()
+	{
+		for(ScheduledFuture<?> task : pending)
+			task.cancel(false);
+
+		pending.clear();
+	}
+
+	// The connection dropped before the game ended, try to get back into the room with this bot's ID
+	private synchronized void connectionLost()
+	{
+		if(finished || reconnecting)
+			return;
+
+		// A bot that never joined has nothing to rejoin
+		if(clientID == -1 || generator.reconnectAttempts <= 0)
+		{
+			finish();
+			return;
+		}
+
+		reconnecting = true;
+		cancelPending();
+		key.cancel();
+
+		try
+		{
+			channel.close();
+		}
+
+		catch(IOException e)
+		{
+			// Already closed
+		}
+
+		schedule(() -> reconnect(1), RECONNECT_INTERVAL_MILLIS);
+	}
+
+	// Open a new connection and ask for this bot's place back, giving up after the set number of attempts (runs on a timer)
+	private void reconnect(int attempt)
+	{
+		SocketChannel newChannel;
+
+		try
+		{
+			newChannel = SocketChannel.open(generator.serverAddress);
+		}
+
+		catch(IOException e)
+		{
+			if(attempt < generator.reconnectAttempts)
+				schedule(() -> reconnect(attempt + 1), RECONNECT_INTERVAL_MILLIS);
+			else
+				finish();
+
+			return;
+		}
+
+		synchronized(this)
+		{
+			if(finished)
+				return;
+
+			// Nothing from the lost round carries over
+			channel = newChannel;
+			inbound.clear();
+			waitingForNext = false;
+			question = null;
+			repairing = false;
+			polling = false;
+
+			send(Protocol.frame(Protocol.CLIENT_HELLO, Protocol.clientHello(generator.roomID, clientID)));
+
+			try
+			{
+				register(selector);
+				selector.wakeup();
+			}
+
+			catch(IOException e)
+			{
+				finish();
+			}
+
+			reconnecting = false;
+		}
+	}
+
+	// Game over (or the connection was lost)
+	private synchronized void finish()
+	{
+		if(finished)
+			return;
+
+		finished = true;
+		cancelPending();
+
+		if(key != null)
+			key.cancel();
+
+		try
+		{
+			channel.close();
+		}
+
+		catch(IOException e)
+		{
+			// Already closed
+		}
+
+		generator.botsFinished.countDown();
+	}
+}
+
+// Random delay in milliseconds
+class BotDelay
+{
+	private final String kind;
+	private final double a;
+	private final double b;
+
+	private BotDelay(String kind, double a, double b)
+	{
+		this.kind = kind;
+		this.a = a;
+		this.b = b;
+	}
+
+	// Parse fixed:MS, uniform:MIN-MAX, exp:MEAN or normal:MEAN,STDDEV
+	static BotDelay parse(String spec)
+	{
+		String[] parts = spec.split(":", 2);
+		String[] values = (parts.length > 1) ? parts[1].split("[-,]") : new String[0];
+
+		try
+		{
+			if(parts[0].equals("fixed") && values.length == 1)
+				return new BotDelay("fixed", Double.parseDouble(values[0]), 0);
+
+			if(parts[0].equals("uniform") && values.length == 2)
+				return new BotDelay("uniform", Double.parseDouble(values[0]), Double.parseDouble(values[1]));
+
+			if(parts[0].equals("exp") && values.length == 1)
+				return new BotDelay("exp", Double.parseDouble(values[0]), 0);
+
+			if(parts[0].equals("normal") && values.length == 2)
+				return new BotDelay("normal", Double.parseDouble(values[0]), Double.parseDouble(values[1]));
+		}
+
+		catch(NumberFormatException e)
+		{
+			// Reported below
+		}
+
+		throw new IllegalArgumentException("Invalid delay '" + spec + "', use fixed:MS, uniform:MIN-MAX, exp:MEAN or normal:MEAN,STDDEV");
+	}
+
+	long nextMillis()
+	{
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		double delay;
+
+		if(kind.equals("fixed"))
+			delay = a;
+
+		else if(kind.equals("uniform"))
+			delay = a + random.nextDouble() * (b - a);
+
+		else if(kind.equals("exp"))
+			delay = -a * Math.log(1 - random.nextDouble());
+
+		else
+			delay = a + random.nextGaussian() * b;
+
+		return Math.max(0, Math.round(delay));
+	}
+}
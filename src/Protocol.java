@@ -0,0 +1,310 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Binary wire protocol shared by Server and ClientWindow
+// Every TCP message is a frame: [opcode: 1 byte][payload length: 2 bytes][payload]
+class Protocol
+{
+	// Sent in both HELLO frames, connections with a different version are refused
+	public static final byte VERSION = 4;
+
+	public static final int HEADER_SIZE = 3;
+	public static final int MAX_PAYLOAD = 0xFFFF;
+
+	// Server to client
+	public static final byte HELLO = 0x01;			// [version: 1][clientID: 4][multicast port: 2][multicast group address, only if the port isn't 0]
+	public static final byte WAIT = 0x02;			// Game in progress, wait for next question
+	public static final byte START = 0x03;
+	public static final byte QUESTION = 0x04;		// [question text (UTF-8)]
+	public static final byte ACK = 0x05;			// This client polled first
+	public static final byte NEGATIVE_ACK = 0x06;	// Another client polled first
+	public static final byte NO_POLL = 0x07;
+	public static final byte STATUS = 0x08;			// [status: 1][answering clientID: 4]
+	public static final byte NEXT = 0x09;
+	public static final byte END = 0x0A;			// [won: 1]
+	public static final byte REFUSED = 0x0B;		// [reason (UTF-8)], connection is closed after this
+	public static final byte LEADERBOARD = 0x0C;	// [rank: 4][score: 4][players: 4][count: 1] then [clientID: 4][score: 4] per leader
+	public static final byte PING = 0x0D;			// [server time: 8], answered with a PONG straight away
+	public static final byte COUNTDOWN = 0x0E;		// [milliseconds left: 4] in the phase started by the frame before it, for display only
+	public static final byte ANNOUNCE = 0x0F;		// [question number: 4], sent instead of QUESTION to subscribed clients, the frame was multicast
+
+	// Client to server
+	public static final byte CLIENT_HELLO = 0x21;	// [version: 1][roomID: 4][resume clientID: 4, optional]
+	public static final byte ANSWER = 0x22;			// [answer (UTF-8)]
+	public static final byte NO_ANSWER = 0x23;
+	public static final byte KILL = 0x24;
+	public static final byte PONG = 0x25;			// [server time from the PING: 8][client time when sent: 8]
+	public static final byte SUBSCRIBE = 0x26;		// Client joined the multicast group from the HELLO
+	public static final byte REPAIR = 0x27;			// [question number: 4], the multicast datagram never arrived, send the QUESTION over TCP
+
+	// UDP datagrams from client to server: [opcode: 1 byte][roomID: 4 bytes][clientID: 4 bytes][client time when sent: 8 bytes]
+	// Client times are the client's System.nanoTime(), the server maps them onto its own clock using PING/PONG
+	public static final int DATAGRAM_SIZE = 17;
+	public static final byte BUZZ = 0x31;
+
+	// Multicast datagrams from server to clients: [roomID: 4 bytes][question number: 4 bytes][QUESTION frame]
+	// Kept within one Ethernet frame so a question is never lost to IP fragmentation, larger questions go over TCP
+	public static final int MULTICAST_HEADER_SIZE = 8;
+	public static final int MAX_MULTICAST_SIZE = 1472;
+
+	// Answer statuses carried by STATUS frames
+	public static final byte CORRECT = 1;
+	public static final byte INCORRECT = 2;
+	public static final byte PENALTY = 3;
+
+	// Frames that never change, shared by every client write
+	public static final ByteBuffer WAIT_FRAME = share(frame(WAIT));
+	public static final ByteBuffer START_FRAME = share(frame(START));
+	public static final ByteBuffer ACK_FRAME = share(frame(ACK));
+	public static final ByteBuffer NEGATIVE_ACK_FRAME = share(frame(NEGATIVE_ACK));
+	public static final ByteBuffer NO_POLL_FRAME = share(frame(NO_POLL));
+	public static final ByteBuffer NEXT_FRAME = share(frame(NEXT));
+	public static final ByteBuffer WIN_FRAME = share(endFrame(true));
+	public static final ByteBuffer LOSE_FRAME = share(endFrame(false));
+
+	// Build a frame with no payload
+	public static ByteBuffer frame(byte opcode)
+	{
+		return frame(opcode, new byte[0]);
+	}
+
+	// Build a frame around a payload
+	public static ByteBuffer frame(byte opcode, byte[] payload)
+	{
+		if(payload.length > MAX_PAYLOAD)
+			throw new IllegalArgumentException("Payload too large: " + payload.length + " bytes");
+
+		ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+		frame.put(opcode);
+		frame.putShort((short)payload.length);
+		frame.put(payload);
+		frame.flip();
+
+		return frame;
+	}
+
+	// Server greeting, tells the client its ID and the multicast group questions are sent to (null if there isn't one)
+	public static ByteBuffer helloFrame(int clientID, InetSocketAddress multicastGroup)
+	{
+		byte[] groupAddress = (multicastGroup != null) ? multicastGroup.getAddress().getAddress() : new byte[0];
+
+		ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + 7 + groupAddress.length);
+		frame.put(HELLO);
+		frame.putShort((short)(7 + groupAddress.length));
+		frame.put(VERSION);
+		frame.putInt(clientID);
+		frame.putShort((short)((multicastGroup != null) ? multicastGroup.getPort() : 0));
+		frame.put(groupAddress);
+		frame.flip();
+
+		return frame;
+	}
+
+	// Read the multicast group from the rest of a HELLO payload, returns null if the server doesn't multicast
+	public static InetSocketAddress multicastGroup(ByteBuffer helloPayload)
+	{
+		if(helloPayload.remaining() < 2)
+			return null;
+
+		int port = helloPayload.getShort() & 0xFFFF;
+		if(port == 0)
+			return null;
+
+		byte[] groupAddress = new byte[helloPayload.remaining()];
+		helloPayload.get(groupAddress);
+
+		try
+		{
+			return new InetSocketAddress(InetAddress.getByAddress(groupAddress), port);
+		}
+		catch(UnknownHostException e)
+		{
+			return null;
+		}
+	}
+
+	// Find the QUESTION payload in a multicast datagram for this room and question, returns null if it's for another
+	public static ByteBuffer multicastQuestion(ByteBuffer datagram, int roomID, int questionNum)
+	{
+		if(datagram.remaining() < MULTICAST_HEADER_SIZE + HEADER_SIZE
+				|| datagram.getInt(datagram.position()) != roomID || datagram.getInt(datagram.position() + 4) != questionNum)
+			return null;
+
+		ByteBuffer frame = datagram.duplicate();
+		frame.position(frame.position() + MULTICAST_HEADER_SIZE);
+
+		if(frame.get(frame.position()) != QUESTION || completeFrameSize(frame) != frame.remaining())
+			return null;
+
+		frame.position(frame.position() + HEADER_SIZE);
+		return frame.slice();
+	}
+
+	// Build an ANNOUNCE frame that can be shared between clients
+	public static ByteBuffer announceFrame(int questionNum)
+	{
+		return share(ByteBuffer.allocate(HEADER_SIZE + 4).put(ANNOUNCE).putShort((short)4).putInt(questionNum).flip());
+	}
+
+	// Build a REPAIR payload asking for a question that wasn't received
+	public static byte[] repair(int questionNum)
+	{
+		return ByteBuffer.allocate(4).putInt(questionNum).array();
+	}
+
+	// Result of the answering client's attempt, identical for every client
+	public static ByteBuffer statusFrame(byte status, int ackClientID)
+	{
+		ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + 5);
+		frame.put(STATUS);
+		frame.putShort((short)5);
+		frame.put(status);
+		frame.putInt(ackClientID);
+		frame.flip();
+
+		return frame;
+	}
+
+	// The part of a LEADERBOARD frame that's different for every client, followed by the shared leaders
+	public static ByteBuffer leaderboardHeader(int leadersLength, int rank, int score, int numPlayers)
+	{
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + 12);
+		header.put(LEADERBOARD);
+		header.putShort((short)(12 + leadersLength));
+		header.putInt(rank);
+		header.putInt(score);
+		header.putInt(numPlayers);
+		header.flip();
+
+		return header;
+	}
+
+	// Game over, and whether this client won
+	public static ByteBuffer endFrame(boolean won)
+	{
+		return frame(END, new byte[] {(byte)(won ? 1 : 0)});
+	}
+
+	// Client greeting, says which room the client wants to join
+	public static byte[] clientHello(int roomID)
+	{
+		return ByteBuffer.allocate(5).put(VERSION).putInt(roomID).array();
+	}
+
+	// Client greeting that reclaims a player's ID (and score) in a room restored from the journal
+	public static byte[] clientHello(int roomID, int resumeClientID)
+	{
+		return ByteBuffer.allocate(9).put(VERSION).putInt(roomID).putInt(resumeClientID).array();
+	}
+
+	// Build a datagram for the server's UDP port
+	public static byte[] datagram(byte opcode, int roomID, int clientID, long clientTime)
+	{
+		return ByteBuffer.allocate(DATAGRAM_SIZE).put(opcode).putInt(roomID).putInt(clientID).putLong(clientTime).array();
+	}
+
+	// Stamp a datagram built by datagram() with a new send time
+	public static void stampDatagram(byte[] datagram, long clientTime)
+	{
+		ByteBuffer.wrap(datagram).putLong(DATAGRAM_SIZE - 8, clientTime);
+	}
+
+	// Build a COUNTDOWN frame that can be shared between clients
+	public static ByteBuffer countdownFrame(long millis)
+	{
+		return share(ByteBuffer.allocate(HEADER_SIZE + 4).put(COUNTDOWN).putShort((short)4).putInt((int)millis).flip());
+	}
+
+	// Build a PING frame stamped with the server's clock
+	public static ByteBuffer pingFrame(long serverTime)
+	{
+		return share(ByteBuffer.allocate(HEADER_SIZE + 8).put(PING).putShort((short)8).putLong(serverTime).flip());
+	}
+
+	// Build a PONG payload answering a PING
+	public static byte[] pong(long serverTime, long clientTime)
+	{
+		return ByteBuffer.allocate(16).putLong(serverTime).putLong(clientTime).array();
+	}
+
+	// Move a frame into a read-only direct buffer that can be shared between clients
+	public static ByteBuffer share(ByteBuffer frame)
+	{
+		ByteBuffer shared = ByteBuffer.allocateDirect(frame.remaining());
+		shared.put(frame.duplicate());
+		shared.flip();
+
+		return shared.asReadOnlyBuffer();
+	}
+
+	// Return the size of the complete frame at the buffer's position, or -1 if it hasn't fully arrived
+	public static int completeFrameSize(ByteBuffer buffer)
+	{
+		if(buffer.remaining() < HEADER_SIZE)
+			return -1;
+
+		int frameSize = HEADER_SIZE + (buffer.getShort(buffer.position() + 1) & 0xFFFF);
+
+		return (buffer.remaining() < frameSize) ? -1 : frameSize;
+	}
+
+	// Decode a UTF-8 payload
+	public static String decodeString(ByteBuffer payload)
+	{
+		return StandardCharsets.UTF_8.decode(payload).toString();
+	}
+
+	// Write a frame to a blocking stream
+	public static void writeFrame(DataOutputStream out, byte opcode, byte[] payload) throws IOException
+	{
+		out.writeByte(opcode);
+		out.writeShort(payload.length);
+		out.write(payload);
+		out.flush();
+	}
+
+	// Write a frame with a UTF-8 payload to a blocking stream
+	public static void writeFrame(DataOutputStream out, byte opcode, String payload) throws IOException
+	{
+		writeFrame(out, opcode, payload.getBytes(StandardCharsets.UTF_8));
+	}
+
+	// Read the next frame from a blocking stream
+	public static Frame readFrame(DataInputStream in) throws IOException
+	{
+		byte opcode = in.readByte();
+		byte[] payload = new byte[in.readUnsignedShort()];
+		in.readFully(payload);
+
+		return new Frame(opcode, ByteBuffer.wrap(payload));
+	}
+
+	// A decoded frame
+	public static class Frame
+	{
+		private final byte opcode;
+		private final ByteBuffer payload;
+
+		public Frame(byte opcode, ByteBuffer payload)
+		{
+			this.opcode = opcode;
+			this.payload = payload;
+		}
+
+		public byte getOpcode()
+		{
+			return opcode;
+		}
+
+		public ByteBuffer getPayload()
+		{
+			return payload;
+		}
+	}
+}
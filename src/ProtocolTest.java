@@ -0,0 +1,403 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+// Round-trip checks for every Protocol codec, run from the src directory with: java ProtocolTest
+// Also measures what one round costs a losing client on the wire and to decode, against the Java-serialized strings the protocol replaced
+public class ProtocolTest
+{
+	private static final int MEASURED_ROUNDS = 20000;
+
+	private static int numChecks = 0;
+	private static int numFailures = 0;
+
+	// Results are folded in here so the JIT can't throw the decoding away
+	static volatile long sink;
+
+	public static void main(String[] args) throws Exception
+	{
+		testFixedFrames();
+		testPayloadFrames();
+		testHello();
+		testMulticastQuestion();
+		testCompleteFrameSize();
+		testStreams();
+		testDatagrams();
+
+		System.out.println(numChecks + " checks, " + numFailures + " failed");
+
+		measureRound();
+
+		if(numFailures > 0)
+			System.exit(1);
+	}
+
+	private static void check(boolean passed, String description)
+	{
+		numChecks++;
+
+		if(!passed)
+		{
+			numFailures++;
+			System.out.println("FAILED: " + description);
+		}
+	}
+
+	// Check a frame's header and return its payload
+	private static ByteBuffer checkFrame(ByteBuffer frame, byte opcode, int payloadLength, String name)
+	{
+		ByteBuffer copy = frame.duplicate();
+
+		check(copy.remaining() == Protocol.HEADER_SIZE + payloadLength, name + " frame size");
+		check(Protocol.completeFrameSize(copy) == copy.remaining(), name + " frame is complete");
+		check(copy.get() == opcode, name + " opcode");
+		check((copy.getShort() & 0xFFFF) == payloadLength, name + " payload length");
+
+		return copy.slice();
+	}
+
+	// Frames shared by every client, and the frames built with no payload
+	private static void testFixedFrames()
+	{
+		checkFrame(Protocol.WAIT_FRAME, Protocol.WAIT, 0, "WAIT");
+		checkFrame(Protocol.START_FRAME, Protocol.START, 0, "START");
+		checkFrame(Protocol.ACK_FRAME, Protocol.ACK, 0, "ACK");
+		checkFrame(Protocol.NEGATIVE_ACK_FRAME, Protocol.NEGATIVE_ACK, 0, "NEGATIVE_ACK");
+		checkFrame(Protocol.NO_POLL_FRAME, Protocol.NO_POLL, 0, "NO_POLL");
+		checkFrame(Protocol.NEXT_FRAME, Protocol.NEXT, 0, "NEXT");
+		checkFrame(Protocol.frame(Protocol.KILL), Protocol.KILL, 0, "KILL");
+
+		check(checkFrame(Protocol.WIN_FRAME, Protocol.END, 1, "WIN").get() == 1, "WIN says the client won");
+		check(checkFrame(Protocol.LOSE_FRAME, Protocol.END, 1, "LOSE").get() == 0, "LOSE says the client lost");
+
+		// Shared frames can't be changed by one client's write
+		check(Protocol.START_FRAME.isReadOnly() && Protocol.START_FRAME.isDirect(), "shared frames are read-only direct buffers");
+	}
+
+	// Every builder that carries a payload
+	private static void testPayloadFrames()
+	{
+		String text = "Question 1\nWhich language? \u00e9\u00e8";
+		byte[] encoded = text.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer question = checkFrame(Protocol.frame(Protocol.QUESTION, encoded), Protocol.QUESTION, encoded.length, "QUESTION");
+		check(Protocol.decodeString(question).equals(text), "QUESTION text round trip");
+
+		byte[] largest = new byte[Protocol.MAX_PAYLOAD];
+		largest[largest.length - 1] = 7;
+		ByteBuffer largestPayload = checkFrame(Protocol.frame(Protocol.QUESTION, largest), Protocol.QUESTION, Protocol.MAX_PAYLOAD, "largest");
+		check(largestPayload.get(Protocol.MAX_PAYLOAD - 1) == 7, "largest payload round trip");
+
+		boolean refused = false;
+		try
+		{
+			Protocol.frame(Protocol.QUESTION, new byte[Protocol.MAX_PAYLOAD + 1]);
+		}
+		catch(IllegalArgumentException e)
+		{
+			refused = true;
+		}
+		check(refused, "payloads over MAX_PAYLOAD are refused");
+
+		ByteBuffer status = checkFrame(Protocol.statusFrame(Protocol.INCORRECT, 4095), Protocol.STATUS, 5, "STATUS");
+		check(status.get() == Protocol.INCORRECT && status.getInt() == 4095, "STATUS round trip");
+
+		ByteBuffer countdown = checkFrame(Protocol.countdownFrame(15000), Protocol.COUNTDOWN, 4, "COUNTDOWN");
+		check(countdown.getInt() == 15000, "COUNTDOWN round trip");
+
+		ByteBuffer ping = checkFrame(Protocol.pingFrame(Long.MIN_VALUE + 3), Protocol.PING, 8, "PING");
+		check(ping.getLong() == Long.MIN_VALUE + 3, "PING round trip");
+
+		ByteBuffer announce = checkFrame(Protocol.announceFrame(17), Protocol.ANNOUNCE, 4, "ANNOUNCE");
+		check(announce.getInt() == 17, "ANNOUNCE round trip");
+
+		// The header says how long the shared leaders that follow it are
+		ByteBuffer leaderboard = Protocol.leaderboardHeader(1 + 2 * 8, 3, -20, 250);
+		check(leaderboard.remaining() == Protocol.HEADER_SIZE + 12, "LEADERBOARD header size");
+		check(leaderboard.get() == Protocol.LEADERBOARD, "LEADERBOARD opcode");
+		check((leaderboard.getShort() & 0xFFFF) == 12 + 1 + 2 * 8, "LEADERBOARD length covers the leaders");
+		check(leaderboard.getInt() == 3 && leaderboard.getInt() == -20 && leaderboard.getInt() == 250, "LEADERBOARD header round trip");
+
+		ByteBuffer pong = ByteBuffer.wrap(Protocol.pong(123456789L, -5L));
+		check(pong.remaining() == 16 && pong.getLong() == 123456789L && pong.getLong() == -5L, "PONG round trip");
+
+		ByteBuffer repair = ByteBuffer.wrap(Protocol.repair(9));
+		check(repair.remaining() == 4 && repair.getInt() == 9, "REPAIR round trip");
+
+		ByteBuffer clientHello = ByteBuffer.wrap(Protocol.clientHello(42));
+		check(clientHello.remaining() == 5 && clientHello.get() == Protocol.VERSION && clientHello.getInt() == 42, "CLIENT_HELLO round trip");
+
+		ByteBuffer resumeHello = ByteBuffer.wrap(Protocol.clientHello(42, 7));
+		check(resumeHello.remaining() == 9 && resumeHello.get() == Protocol.VERSION && resumeHello.getInt() == 42 && resumeHello.getInt() == 7, "resuming CLIENT_HELLO round trip");
+	}
+
+	// Server HELLO with and without a multicast group
+	private static void testHello() throws Exception
+	{
+		ByteBuffer plain = checkFrame(Protocol.helloFrame(12, null), Protocol.HELLO, 7, "HELLO");
+		check(plain.get() == Protocol.VERSION && plain.getInt() == 12, "HELLO version and client ID");
+		check(Protocol.multicastGroup(plain) == null, "HELLO without a multicast group");
+
+		InetSocketAddress group = new InetSocketAddress(InetAddress.getByName("239.1.2.3"), 4446);
+		ByteBuffer multicast = checkFrame(Protocol.helloFrame(13, group), Protocol.HELLO, 11, "multicast HELLO");
+		check(multicast.get() == Protocol.VERSION && multicast.getInt() == 13, "multicast HELLO version and client ID");
+		check(group.equals(Protocol.multicastGroup(multicast)), "multicast group round trip");
+
+		InetSocketAddress group6 = new InetSocketAddress(InetAddress.getByName("ff15::1"), 65535);
+		ByteBuffer multicast6 = checkFrame(Protocol.helloFrame(14, group6), Protocol.HELLO, 23, "IPv6 multicast HELLO");
+		multicast6.position(5);
+		check(group6.equals(Protocol.multicastGroup(multicast6)), "IPv6 multicast group round trip");
+
+		// HELLOs from before the multicast fields were added
+		check(Protocol.multicastGroup(ByteBuffer.allocate(0)) == null, "HELLO with no multicast fields");
+	}
+
+	// Finding a room's question in a multicast datagram
+	private static void testMulticastQuestion()
+	{
+		byte[] text = "Question 3".getBytes(StandardCharsets.UTF_8);
+		ByteBuffer frame = Protocol.frame(Protocol.QUESTION, text);
+
+		ByteBuffer datagram = ByteBuffer.allocate(Protocol.MULTICAST_HEADER_SIZE + frame.remaining());
+		datagram.putInt(5).putInt(3).put(frame.duplicate()).flip();
+
+		ByteBuffer payload = Protocol.multicastQuestion(datagram, 5, 3);
+		check(payload != null && Protocol.decodeString(payload).equals("Question 3"), "multicast question round trip");
+		check(datagram.position() == 0, "finding the question leaves the datagram alone");
+
+		check(Protocol.multicastQuestion(datagram, 6, 3) == null, "multicast question for another room is ignored");
+		check(Protocol.multicastQuestion(datagram, 5, 4) == null, "multicast question with another number is ignored");
+
+		ByteBuffer truncated = datagram.duplicate();
+		truncated.limit(truncated.limit() - 1);
+		check(Protocol.multicastQuestion(truncated, 5, 3) == null, "truncated multicast question is ignored");
+
+		ByteBuffer notQuestion = ByteBuffer.allocate(Protocol.MULTICAST_HEADER_SIZE + Protocol.HEADER_SIZE);
+		notQuestion.putInt(5).putInt(3).put(Protocol.NEXT).putShort((short)0).flip();
+		check(Protocol.multicastQuestion(notQuestion, 5, 3) == null, "multicast datagram without a QUESTION is ignored");
+
+		check(Protocol.multicastQuestion(ByteBuffer.allocate(4), 0, 0) == null, "runt multicast datagram is ignored");
+	}
+
+	// Frames split across reads, as the server's event loops see them
+	private static void testCompleteFrameSize()
+	{
+		ByteBuffer frame = Protocol.frame(Protocol.ANSWER, "Minecraft".getBytes(StandardCharsets.UTF_8));
+		int frameSize = frame.remaining();
+
+		for(int available = 0; available < frameSize; available++)
+		{
+			ByteBuffer partial = frame.duplicate();
+			partial.limit(available);
+			check(Protocol.completeFrameSize(partial) == -1, "partial frame of " + available + " bytes isn't complete");
+		}
+
+		check(Protocol.completeFrameSize(frame.duplicate()) == frameSize, "whole frame is complete");
+
+		// A frame followed by the start of the next one, read from where the first ends
+		ByteBuffer twoFrames = ByteBuffer.allocate(frameSize + 2);
+		twoFrames.put(frame.duplicate()).put(Protocol.PONG).put((byte)0).flip();
+		check(Protocol.completeFrameSize(twoFrames) == frameSize, "frame followed by a partial frame");
+		twoFrames.position(frameSize);
+		check(Protocol.completeFrameSize(twoFrames) == -1, "partial frame after a complete one");
+
+		// The length is unsigned, so the largest payload doesn't look negative
+		ByteBuffer largest = Protocol.frame(Protocol.QUESTION, new byte[Protocol.MAX_PAYLOAD]);
+		check(Protocol.completeFrameSize(largest.duplicate()) == Protocol.HEADER_SIZE + Protocol.MAX_PAYLOAD, "largest frame is complete");
+
+		ByteBuffer largestPartial = largest.duplicate();
+		largestPartial.limit(largestPartial.limit() - 1);
+		check(Protocol.completeFrameSize(largestPartial) == -1, "largest frame missing its last byte isn't complete");
+	}
+
+	// Blocking stream codec used by ClientWindow and the load generator
+	private static void testStreams() throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+
+		Protocol.writeFrame(out, Protocol.CLIENT_HELLO, Protocol.clientHello(3));
+		Protocol.writeFrame(out, Protocol.ANSWER, "Caf\u00e9");
+		Protocol.writeFrame(out, Protocol.NO_ANSWER, "");
+		Protocol.writeFrame(out, Protocol.QUESTION, new byte[Protocol.MAX_PAYLOAD]);
+
+		// Streams carry exactly what the frame builders produce
+		byte[] written = bytes.toByteArray();
+		ByteBuffer expected = Protocol.frame(Protocol.CLIENT_HELLO, Protocol.clientHello(3));
+		byte[] expectedBytes = new byte[expected.remaining()];
+		expected.get(expectedBytes);
+		check(Arrays.equals(Arrays.copyOf(written, expectedBytes.length), expectedBytes), "writeFrame matches frame()");
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(written));
+
+		Protocol.Frame hello = Protocol.readFrame(in);
+		check(hello.getOpcode() == Protocol.CLIENT_HELLO && hello.getPayload().remaining() == 5, "readFrame CLIENT_HELLO");
+		check(hello.getPayload().get() == Protocol.VERSION && hello.getPayload().getInt() == 3, "readFrame CLIENT_HELLO payload");
+
+		Protocol.Frame answer = Protocol.readFrame(in);
+		check(answer.getOpcode() == Protocol.ANSWER && Protocol.decodeString(answer.getPayload()).equals("Caf\u00e9"), "readFrame UTF-8 ANSWER");
+
+		Protocol.Frame noAnswer = Protocol.readFrame(in);
+		check(noAnswer.getOpcode() == Protocol.NO_ANSWER && noAnswer.getPayload().remaining() == 0, "readFrame empty payload");
+
+		Protocol.Frame largest = Protocol.readFrame(in);
+		check(largest.getOpcode() == Protocol.QUESTION && largest.getPayload().remaining() == Protocol.MAX_PAYLOAD, "readFrame largest payload");
+
+		boolean ended = false;
+		try
+		{
+			Protocol.readFrame(in);
+		}
+		catch(EOFException e)
+		{
+			ended = true;
+		}
+		check(ended, "readFrame at the end of the stream");
+
+		// A frame cut off mid-payload is an error, not a short frame
+		DataInputStream cut = new DataInputStream(new ByteArrayInputStream(Arrays.copyOf(written, expectedBytes.length - 1)));
+		boolean truncated = false;
+		try
+		{
+			Protocol.readFrame(cut);
+		}
+		catch(EOFException e)
+		{
+			truncated = true;
+		}
+		check(truncated, "readFrame refuses a truncated frame");
+	}
+
+	// Buzz datagrams, built once and stamped for each send
+	private static void testDatagrams()
+	{
+		byte[] datagram = Protocol.datagram(Protocol.BUZZ, 7, 4095, 1L);
+		check(datagram.length == Protocol.DATAGRAM_SIZE, "datagram size");
+
+		ByteBuffer fields = ByteBuffer.wrap(datagram);
+		check(fields.get() == Protocol.BUZZ && fields.getInt() == 7 && fields.getInt() == 4095 && fields.getLong() == 1L, "datagram round trip");
+
+		Protocol.stampDatagram(datagram, Long.MAX_VALUE - 1);
+		ByteBuffer stamped = ByteBuffer.wrap(datagram);
+		check(stamped.get() == Protocol.BUZZ && stamped.getInt() == 7 && stamped.getInt() == 4095, "stamping keeps the other fields");
+		check(stamped.getLong() == Long.MAX_VALUE - 1, "stamped send time round trip");
+	}
+
+	// Bytes and decode time for the messages a losing client got each round under the old protocol (question 5, another client answers)
+	private static void measureRound() throws Exception
+	{
+		byte[] question = Files.readAllBytes(Paths.get("questions", "question5.txt"));
+		int answeringClientID = 2;
+
+		// Java-serialized strings on one long-lived stream, the question sent as its length then its bytes
+		ByteArrayOutputStream legacyBytes = new ByteArrayOutputStream();
+		ObjectOutputStream legacyOut = new ObjectOutputStream(legacyBytes);
+		int legacyHeader = legacyBytes.size();
+
+		for(int round = 0; round < MEASURED_ROUNDS; round++)
+		{
+			legacyOut.writeObject(Integer.valueOf(question.length));
+			legacyOut.write(question, 0, question.length);
+			legacyOut.writeObject("negative-ack");
+			legacyOut.writeObject("alt_correct" + answeringClientID);
+			legacyOut.writeObject("next");
+		}
+		legacyOut.flush();
+
+		// The same round as frames
+		ByteArrayOutputStream frameBytes = new ByteArrayOutputStream();
+		DataOutputStream frameOut = new DataOutputStream(frameBytes);
+		ByteBuffer status = Protocol.statusFrame(Protocol.CORRECT, answeringClientID);
+		byte[] statusPayload = Arrays.copyOfRange(status.array(), Protocol.HEADER_SIZE, status.limit());
+
+		for(int round = 0; round < MEASURED_ROUNDS; round++)
+		{
+			Protocol.writeFrame(frameOut, Protocol.QUESTION, question);
+			Protocol.writeFrame(frameOut, Protocol.NEGATIVE_ACK, new byte[0]);
+			Protocol.writeFrame(frameOut, Protocol.STATUS, statusPayload);
+			Protocol.writeFrame(frameOut, Protocol.NEXT, new byte[0]);
+		}
+
+		double legacyPerRound = (legacyBytes.size() - legacyHeader) / (double)MEASURED_ROUNDS;
+		double framedPerRound = frameBytes.size() / (double)MEASURED_ROUNDS;
+		System.out.printf("Wire bytes per round: %.1f serialized, %.1f framed (question payload %d)%n", legacyPerRound, framedPerRound, question.length);
+
+		byte[] legacy = legacyBytes.toByteArray();
+		byte[] framed = frameBytes.toByteArray();
+
+		// Warm up both decoders before timing them
+		for(int i = 0; i < 5; i++)
+		{
+			decodeLegacy(legacy);
+			decodeFramed(framed);
+		}
+
+		long start = System.nanoTime();
+		decodeLegacy(legacy);
+		long legacyNanos = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		decodeFramed(framed);
+		long framedNanos = System.nanoTime() - start;
+
+		System.out.printf("Client decode per round: %.2f us serialized, %.2f us framed%n",
+				legacyNanos / 1000.0 / MEASURED_ROUNDS, framedNanos / 1000.0 / MEASURED_ROUNDS);
+	}
+
+	// Decode the old messages the way ClientWindow did, parsing the answering client's ID out of the status string
+	private static void decodeLegacy(byte[] rounds) throws Exception
+	{
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(rounds));
+		long total = 0;
+
+		for(int round = 0; round < MEASURED_ROUNDS; round++)
+		{
+			byte[] question = new byte[(Integer)in.readObject()];
+			in.readFully(question);
+			total += new String(question, StandardCharsets.UTF_8).length();
+
+			String ack = (String)in.readObject();
+			total += ack.contains("negative") ? 1 : 0;
+
+			String status = (String)in.readObject();
+			if(status.contains("alt_correct"))
+				total += Integer.parseInt(status.replaceAll("[^0-9]", ""));
+
+			total += ((String)in.readObject()).length();
+		}
+
+		sink += total;
+	}
+
+	// Decode the same round from frames
+	private static void decodeFramed(byte[] rounds) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(rounds));
+		long total = 0;
+
+		for(int round = 0; round < MEASURED_ROUNDS; round++)
+		{
+			total += Protocol.decodeString(Protocol.readFrame(in).getPayload()).length();
+			total += (Protocol.readFrame(in).getOpcode() == Protocol.NEGATIVE_ACK) ? 1 : 0;
+
+			ByteBuffer status = Protocol.readFrame(in).getPayload();
+			if(status.get() == Protocol.CORRECT)
+				total += status.getInt();
+
+			total += Protocol.readFrame(in).getOpcode();
+		}
+
+		sink += total;
+	}
+}
@@ -0,0 +1,38 @@
+import java.nio.ByteBuffer;
+
+// A question as shown to players, decoded straight from a QUESTION payload (the question then four options, one per line)
+class Question
+{
+	public static final int NUM_OPTIONS = 4;
+
+	private final String text;
+	private final String[] options;
+
+	public Question(String text, String[] options)
+	{
+		this.text = text;
+		this.options = options;
+	}
+
+	// Decode a QUESTION payload, missing lines become empty options
+	public static Question decode(ByteBuffer payload)
+	{
+		String[] lines = Protocol.decodeString(payload).split("\\r?\\n", NUM_OPTIONS + 2);
+		String[] options = new String[NUM_OPTIONS];
+
+		for(int i = 0; i < NUM_OPTIONS; i++)
+			options[i] = (i + 1 < lines.length) ? lines[i + 1].trim() : "";
+
+		return new Question(lines[0].trim(), options);
+	}
+
+	public String getText()
+	{
+		return text;
+	}
+
+	public String getOption(int index)
+	{
+		return options[index];
+	}
+}
@@ -0,0 +1,188 @@
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Bounded LRU cache of questions decoded from the question pack, filled ahead of time by a background loader
+// Rounds only read from memory as long as their questions were prefetched, however big the bank is
+class QuestionCache
+{
+	// Questions kept in memory unless a size is given
+	public static final int DEFAULT_CAPACITY = 4096;
+
+	private final QuestionPack pack;
+	private final int capacity;
+
+	// Least recently used question first (a lock rather than synchronized so virtual threads don't pin)
+	private final LinkedHashMap<Integer, CachedQuestion> questions;
+	private final ReentrantLock lock;
+
+	// Loads prefetched questions off the round path, each question is only queued once at a time
+	private final ExecutorService loader;
+	private final Map<Integer, Boolean> loading;
+
+	// Lookups served from memory, and lookups that had to read the pack themselves
+	private final LongAdder hits;
+	private final LongAdder misses;
+
+	public QuestionCache(QuestionPack pack, int capacity)
+	{
+		this.pack = pack;
+		this.capacity = Math.max(1, capacity);
+
+		questions = new LinkedHashMap<Integer, CachedQuestion>(16, 0.75f, true)
+		{
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, CachedQuestion> eldest)
+			{
+				return size() > QuestionCache.this.capacity;
+			}
+		};
+		lock = new ReentrantLock();
+
+		loader = Executors.newSingleThreadExecutor(task -> ServerThreads.newThread(task, "QuestionLoader"));
+		loading = new ConcurrentHashMap<Integer, Boolean>();
+
+		hits = new LongAdder();
+		misses = new LongAdder();
+	}
+
+	// Return the number of questions in the bank
+	public int getNumQuestions()
+	{
+		return pack.getNumQuestions();
+	}
+
+	// Get a question's frame (read-only, shared by every client)
+	public ByteBuffer getFrame(int questionNum)
+	{
+		return get(questionNum).frame;
+	}
+
+	// Get the correct answer to a question
+	public String getAnswer(int questionNum)
+	{
+		return get(questionNum).answer;
+	}
+
+	// Start loading a question in the background if it isn't in memory yet
+	public void prefetch(int questionNum)
+	{
+		if(contains(questionNum) || loading.putIfAbsent(questionNum, Boolean.TRUE) != null)
+			return;
+
+		loader.execute(() ->
+		{
+			try
+			{
+				if(!contains(questionNum))
+					put(questionNum, load(questionNum));
+			}
+			finally
+			{
+				loading.remove(questionNum);
+			}
+		});
+	}
+
+	// Number of questions currently in memory
+	public int size()
+	{
+		lock.lock();
+		try
+		{
+			return questions.size();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	public long getHits()
+	{
+		return hits.sum();
+	}
+
+	public long getMisses()
+	{
+		return misses.sum();
+	}
+
+	// Look a question up, reading it from the pack right away if it wasn't prefetched
+	private CachedQuestion get(int questionNum)
+	{
+		CachedQuestion question;
+
+		lock.lock();
+		try
+		{
+			question = questions.get(questionNum);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+
+		if(question != null)
+		{
+			hits.increment();
+			return question;
+		}
+
+		misses.increment();
+		question = load(questionNum);
+		put(questionNum, question);
+
+		return question;
+	}
+
+	private boolean contains(int questionNum)
+	{
+		lock.lock();
+		try
+		{
+			return questions.containsKey(questionNum);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	private void put(int questionNum, CachedQuestion question)
+	{
+		lock.lock();
+		try
+		{
+			questions.put(questionNum, question);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	// Copy a question out of the mapping, this is where its pages get read from disk
+	private CachedQuestion load(int questionNum)
+	{
+		return new CachedQuestion(Protocol.share(pack.getFrame(questionNum)), pack.getAnswer(questionNum));
+	}
+
+	// A question's frame and answer
+	private static class CachedQuestion
+	{
+		final ByteBuffer frame;
+		final String answer;
+
+		CachedQuestion(ByteBuffer frame, String answer)
+		{
+			this.frame = frame;
+			this.answer = answer;
+		}
+	}
+}
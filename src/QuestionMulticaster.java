@@ -0,0 +1,134 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.atomic.LongAdder;
+
+// Sends each question once per room to a multicast group, so on a LAN the cost of a question doesn't grow with the room
+// Clients that joined the group are only told the question number over TCP, and ask for the frame over TCP if the datagram was lost
+class QuestionMulticaster
+{
+	private final DatagramChannel channel;
+	private final InetSocketAddress group;
+
+	// Questions multicast, questions too large for one datagram (sent over TCP instead) and questions resent to clients who missed them
+	private final LongAdder numSent;
+	private final LongAdder numTooLarge;
+	private final LongAdder numRepairs;
+
+	public QuestionMulticaster(InetSocketAddress group, NetworkInterface networkInterface) throws IOException
+	{
+		this.group = group;
+
+		channel = DatagramChannel.open(group.getAddress().getAddress().length == 4 ? StandardProtocolFamily.INET : StandardProtocolFamily.INET6);
+
+		// Questions stay on the LAN, and clients on the server's own machine get them too
+		channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, 1);
+		channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+
+		if(networkInterface != null)
+			channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+
+		numSent = new LongAdder();
+		numTooLarge = new LongAdder();
+		numRepairs = new LongAdder();
+	}
+
+	// Create the multicaster set with -Dquiz.multicast=<group>:<port> (and optionally -Dquiz.multicastInterface=<name>)
+	// Returns null when multicast isn't enabled, every question is then sent over TCP
+	public static QuestionMulticaster fromProperties() throws IOException
+	{
+		String spec = System.getProperty("quiz.multicast");
+		if(spec == null || spec.isEmpty())
+			return null;
+
+		int separator = spec.lastIndexOf(':');
+		if(separator == -1)
+			throw new IOException("quiz.multicast must look like <group>:<port>, not " + spec);
+
+		InetAddress address = InetAddress.getByName(spec.substring(0, separator));
+		if(!address.isMulticastAddress())
+			throw new IOException(address.getHostAddress() + " is not a multicast address");
+
+		int port;
+		try
+		{
+			port = Integer.parseInt(spec.substring(separator + 1));
+		}
+		catch(NumberFormatException e)
+		{
+			throw new IOException("Invalid multicast port in " + spec);
+		}
+
+		NetworkInterface networkInterface = null;
+		String interfaceName = System.getProperty("quiz.multicastInterface");
+		if(interfaceName != null)
+		{
+			networkInterface = NetworkInterface.getByName(interfaceName);
+			if(networkInterface == null)
+				throw new IOException("No network interface named " + interfaceName);
+		}
+
+		return new QuestionMulticaster(new InetSocketAddress(address, port), networkInterface);
+	}
+
+	// Group clients should join, sent in every HELLO
+	public InetSocketAddress getGroup()
+	{
+		return group;
+	}
+
+	// Multicast a room's question frame, returns false if it has to go over TCP instead
+	public boolean send(int roomID, int questionNum, ByteBuffer frame)
+	{
+		if(Protocol.MULTICAST_HEADER_SIZE + frame.remaining() > Protocol.MAX_MULTICAST_SIZE)
+		{
+			numTooLarge.increment();
+			return false;
+		}
+
+		ByteBuffer datagram = ByteBuffer.allocate(Protocol.MULTICAST_HEADER_SIZE + frame.remaining());
+		datagram.putInt(roomID);
+		datagram.putInt(questionNum);
+		datagram.put(frame.duplicate());
+		datagram.flip();
+
+		try
+		{
+			channel.send(datagram, group);
+			numSent.increment();
+			return true;
+		}
+
+		catch(IOException e)
+		{
+			System.err.println("ERROR multicasting question " + questionNum + " for room " + roomID + ": " + e.getMessage());
+			return false;
+		}
+	}
+
+	// Called when a client that missed a question's datagram has been sent the frame over TCP
+	public void repaired()
+	{
+		numRepairs.increment();
+	}
+
+	public long getNumSent()
+	{
+		return numSent.sum();
+	}
+
+	public long getNumTooLarge()
+	{
+		return numTooLarge.sum();
+	}
+
+	public long getNumRepairs()
+	{
+		return numRepairs.sum();
+	}
+}
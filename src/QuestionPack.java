@@ -0,0 +1,90 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// A question bank packed into one file and memory-mapped, so opening it costs the same however many questions it holds
+// Layout: [magic: 4][version: 4][count: 4][reserved: 4], then one 8 byte record offset per question,
+// then the records: [QUESTION frame (opcode, length, question and options as lines)][answer length: 1][answer (UTF-8)]
+class QuestionPack
+{
+	static final int MAGIC = 0x5150414B;	// "QPAK"
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 16;
+
+	// Read-only, pages are loaded by the OS as questions are used and never count against the heap
+	private final MappedByteBuffer pack;
+	private final int numQuestions;
+
+	public QuestionPack(Path path) throws IOException
+	{
+		try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+		{
+			// A single mapping can't be larger than 2 GB
+			if(channel.size() > Integer.MAX_VALUE)
+				throw new IOException(path + " is larger than 2 GB");
+
+			pack = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+
+		if(pack.limit() < HEADER_SIZE || pack.getInt(0) != MAGIC)
+			throw new IOException(path + " is not a question pack");
+
+		if(pack.getInt(4) != VERSION)
+			throw new IOException(path + " is version " + pack.getInt(4) + " of the question pack format, expected " + VERSION);
+
+		numQuestions = pack.getInt(8);
+
+		if(numQuestions <= 0 || HEADER_SIZE + 8L * numQuestions > pack.limit())
+			throw new IOException(path + " is truncated");
+	}
+
+	// Return the number of questions in the pack
+	public int getNumQuestions()
+	{
+		return numQuestions;
+	}
+
+	// Get a question's frame straight from the mapping (read-only, shared by every client)
+	public ByteBuffer getFrame(int questionNum)
+	{
+		int offset = recordOffset(questionNum);
+
+		return pack.slice(offset, frameSize(offset));
+	}
+
+	// Get the correct answer to a question
+	public String getAnswer(int questionNum)
+	{
+		int offset = recordOffset(questionNum);
+		int answerOffset = offset + frameSize(offset);
+
+		byte[] answer = new byte[pack.get(answerOffset) & 0xFF];
+		pack.get(answerOffset + 1, answer);
+
+		return new String(answer, StandardCharsets.UTF_8);
+	}
+
+	// Where a question's record starts (question numbers start at 1)
+	private int recordOffset(int questionNum)
+	{
+		if(questionNum < 1 || questionNum > numQuestions)
+			throw new IllegalArgumentException("No question " + questionNum + " in a pack of " + numQuestions);
+
+		long offset = pack.getLong(HEADER_SIZE + 8 * (questionNum - 1));
+
+		if(offset < HEADER_SIZE || offset + Protocol.HEADER_SIZE > pack.limit())
+			throw new IllegalStateException("Question " + questionNum + " has a corrupt offset");
+
+		return (int)offset;
+	}
+
+	// Size of the QUESTION frame at the start of a record
+	private int frameSize(int offset)
+	{
+		return Protocol.HEADER_SIZE + (pack.getShort(offset + 1) & 0xFFFF);
+	}
+}
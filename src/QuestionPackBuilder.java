@@ -0,0 +1,100 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Converts the questionN.txt files and answer_key.txt into a question pack the server can memory-map
+// Usage: java QuestionPackBuilder [questions directory] [output file]
+public class QuestionPackBuilder
+{
+	public static void main(String[] args) throws IOException
+	{
+		Path directory = Paths.get(args.length > 0 ? args[0] : "questions");
+		Path output = (args.length > 1) ? Paths.get(args[1]) : directory.resolve("questions.pack");
+
+		List<byte[]> questions = new ArrayList<byte[]>();
+		List<String> answers = Files.readAllLines(directory.resolve("answer_key.txt"), StandardCharsets.UTF_8);
+
+		// Read questions in order until the next file is missing
+		for(int questionNum = 1; Files.exists(directory.resolve("question" + questionNum + ".txt")); questionNum++)
+		{
+			Path file = directory.resolve("question" + questionNum + ".txt");
+			byte[] question = Files.readAllBytes(file);
+
+			if(questionNum > answers.size())
+				throw new IOException("answer_key.txt has no answer for question " + questionNum);
+
+			// Every question is its text followed by four options, one per line
+			List<String> lines = Arrays.asList(new String(question, StandardCharsets.UTF_8).split("\\r?\\n"));
+			if(lines.size() < 5)
+				throw new IOException(file + " needs a question and four options");
+
+			String answer = answers.get(questionNum - 1).trim();
+			boolean answerIsOption = false;
+			for(int i = 1; i <= 4; i++)
+				answerIsOption |= lines.get(i).trim().equals(answer);
+
+			if(!answerIsOption)
+				System.err.println("WARNING: answer to question " + questionNum + " (" + answer + ") isn't one of its options");
+
+			questions.add(question);
+		}
+
+		if(questions.isEmpty())
+			throw new IOException("No question files found in " + directory);
+
+		write(output, questions, answers.subList(0, questions.size()));
+		System.out.println("Wrote " + questions.size() + " questions to " + output);
+	}
+
+	// Write a pack from question payloads and their answers
+	static void write(Path output, List<byte[]> questions, List<String> answers) throws IOException
+	{
+		// Records follow the header and the offset index
+		long offset = QuestionPack.HEADER_SIZE + 8L * questions.size();
+
+		try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(output), 1 << 16)))
+		{
+			out.writeInt(QuestionPack.MAGIC);
+			out.writeInt(QuestionPack.VERSION);
+			out.writeInt(questions.size());
+			out.writeInt(0);
+
+			for(int i = 0; i < questions.size(); i++)
+			{
+				out.writeLong(offset);
+				offset += Protocol.HEADER_SIZE + questions.get(i).length + 1 + answerBytes(answers.get(i)).length;
+			}
+
+			for(int i = 0; i < questions.size(); i++)
+			{
+				ByteBuffer frame = Protocol.frame(Protocol.QUESTION, questions.get(i));
+				out.write(frame.array(), frame.position(), frame.remaining());
+
+				byte[] answer = answerBytes(answers.get(i));
+				out.writeByte(answer.length);
+				out.write(answer);
+			}
+		}
+
+		if(offset > Integer.MAX_VALUE)
+			System.err.println("WARNING: " + output + " is larger than 2 GB and can't be mapped by the server");
+	}
+
+	private static byte[] answerBytes(String answer) throws IOException
+	{
+		byte[] bytes = answer.trim().getBytes(StandardCharsets.UTF_8);
+
+		if(bytes.length > 0xFF)
+			throw new IOException("Answer is longer than 255 bytes: " + answer);
+
+		return bytes;
+	}
+}
@@ -0,0 +1,183 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Registry of the game rooms hosted by this server
+// Rooms share a small pool of worker threads, so thousands of idle rooms cost no threads
+class RoomManager
+{
+	// Room IDs must be below this (room 0 is never used)
+	public static final int MAX_ROOMS = 4096;
+
+	// Clients per room unless a capacity is given when the room is created
+	public static final int DEFAULT_CAPACITY = 4096;
+
+	// Indexed by room ID so the UDP thread can find a room without allocating
+	private final AtomicReferenceArray<GameRoom> rooms;
+	private int nextRoomID;
+
+	private final QuestionCache questions;
+
+	// Sends questions to a multicast group on LAN deployments (null when every question goes over TCP)
+	private final QuestionMulticaster multicaster;
+
+	// Records every room's game events so they can be rebuilt after a crash (null when journaling is off)
+	private final GameJournal journal;
+
+	// Where the next room's game starts in the question bank, so rooms share out a large bank
+	private int nextFirstQuestion;
+
+	// Room i runs its state machine on workers[i % workers.length]
+	private final ScheduledExecutorService[] workers;
+
+	// Every room's phase deadlines, expired ones run on the room's worker
+	private final TimerWheel timers;
+
+	public RoomManager(QuestionCache questions, QuestionMulticaster multicaster, GameJournal journal)
+	{
+		this.questions = questions;
+		this.multicaster = multicaster;
+		this.journal = journal;
+		nextFirstQuestion = 1;
+
+		rooms = new AtomicReferenceArray<GameRoom>(MAX_ROOMS);
+		nextRoomID = 1;
+
+		workers = new ScheduledExecutorService[Runtime.getRuntime().availableProcessors()];
+		for(int i = 0; i < workers.length; i++)
+		{
+			String name = "RoomWorker-" + i;
+			workers[i] = Executors.newSingleThreadScheduledExecutor(task -> ServerThreads.newThread(task, name));
+		}
+
+		// 10 ms ticks, one turn of the wheel covers a little over 5 seconds
+		timers = new TimerWheel(10, TimeUnit.MILLISECONDS, 512);
+		ServerThreads.start(timers, "TimerWheel");
+	}
+
+	// Create a room and return it, or null if every room ID is in use
+	public synchronized GameRoom createRoom(int capacity)
+	{
+		capacity = Math.max(2, Math.min(capacity, Server.MAX_CLIENT_ID));
+
+		// Hand out IDs in order, wrapping around to reuse IDs of rooms that have finished
+		for(int i = 0; i < MAX_ROOMS - 1; i++)
+		{
+			int roomID = nextRoomID;
+			nextRoomID = (nextRoomID == MAX_ROOMS - 1) ? 1 : nextRoomID + 1;
+
+			if(rooms.get(roomID) == null)
+			{
+				GameRoom room = new GameRoom(roomID, capacity, this, questions, multicaster, nextFirstQuestion, workers[roomID % workers.length], timers);
+				if(journal != null)
+					journal.append(GameJournal.ROOM_CREATED, roomID, capacity, nextFirstQuestion);
+
+				rooms.set(roomID, room);
+
+				nextFirstQuestion = (nextFirstQuestion - 1 + Server.QUESTIONS_PER_GAME) % questions.getNumQuestions() + 1;
+				return room;
+			}
+		}
+
+		return null;
+	}
+
+	// Rebuild a room from the journal with the same ID, returns null if the ID is taken or its game had already been played out
+	public synchronized GameRoom restoreRoom(GameJournal.RecoveredRoom recovered)
+	{
+		int roomID = recovered.roomID;
+		if(roomID <= 0 || roomID >= MAX_ROOMS || rooms.get(roomID) != null)
+			return null;
+
+		if(recovered.questionsPlayed >= Math.min(Server.QUESTIONS_PER_GAME, questions.getNumQuestions()))
+			return null;
+
+		GameRoom room = new GameRoom(roomID, recovered.capacity, this, questions, multicaster, recovered.firstQuestion, workers[roomID % workers.length], timers);
+		journal.append(GameJournal.ROOM_CREATED, roomID, recovered.capacity, recovered.firstQuestion);
+		room.restore(recovered.questionsPlayed, recovered.scores);
+		rooms.set(roomID, room);
+
+		// New rooms take the IDs and questions after the restored ones
+		nextRoomID = (roomID == MAX_ROOMS - 1) ? 1 : roomID + 1;
+		nextFirstQuestion = (recovered.firstQuestion - 1 + Server.QUESTIONS_PER_GAME) % questions.getNumQuestions() + 1;
+		return room;
+	}
+
+	// Look up a room, returns null if there is no room with this ID
+	public GameRoom getRoom(int roomID)
+	{
+		if(roomID <= 0 || roomID >= MAX_ROOMS)
+			return null;
+
+		return rooms.get(roomID);
+	}
+
+	// Forget a room once its game is over
+	void removeRoom(GameRoom room)
+	{
+		rooms.compareAndSet(room.getRoomID(), room, null);
+	}
+
+	// Number of clients playing in any room
+	public long getNumClients()
+	{
+		long numClients = 0;
+
+		for(int roomID = 1; roomID < MAX_ROOMS; roomID++)
+		{
+			GameRoom room = rooms.get(roomID);
+
+			if(room != null)
+				numClients += room.getNumClients();
+		}
+
+		return numClients;
+	}
+
+	// Number of buzzes recorded this round, summed over every room
+	public long getNumBuzzes()
+	{
+		long numBuzzes = 0;
+
+		for(int roomID = 1; roomID < MAX_ROOMS; roomID++)
+		{
+			GameRoom room = rooms.get(roomID);
+
+			if(room != null)
+				numBuzzes += room.getNumBuzzes();
+		}
+
+		return numBuzzes;
+	}
+
+	// Get the journal game events are recorded in, null if journaling is off
+	public GameJournal getJournal()
+	{
+		return journal;
+	}
+
+	// Get the timer wheel that keeps every room's deadlines
+	public TimerWheel getTimers()
+	{
+		return timers;
+	}
+
+	// Get every open room
+	public List<GameRoom> getRooms()
+	{
+		List<GameRoom> open = new ArrayList<GameRoom>();
+
+		for(int roomID = 1; roomID < MAX_ROOMS; roomID++)
+		{
+			GameRoom room = rooms.get(roomID);
+
+			if(room != null)
+				open.add(room);
+		}
+
+		return open;
+	}
+}
@@ -1,41 +1,77 @@
 import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
-import java.nio.file.Files;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.file.Paths;
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.Scanner;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
 
 public class Server 
 {
+	// Round timing, matches the countdowns shown by ClientWindow
+	// Phase lengths, every deadline is kept by the server and clients are only told how long is left
+	static final int BUZZ_WINDOW_SECONDS = 15;
+	static final int ANSWER_WINDOW_SECONDS = 10;
+	static final int PAUSE_MILLIS = 4000;
+	
+	// Extra time allowed for an answer submitted just as the client's countdown ran out to arrive
+	static final int GRACE_SECONDS = 2;
+	
+	// How long after a round's first buzz arrives the server waits for buzzes that were sent earlier over slower links
+	// This is all the latency fairness adds to a round, and the most credit a buzz can get for its sender's latency
+	// Set with -Dquiz.arbitrationMillis=<millis>, 0 means the first buzz to arrive wins
+	static final int BUZZ_ARBITRATION_MILLIS = Math.max(0, Integer.getInteger("quiz.arbitrationMillis", 150));
+	
+	// How often each client's round trip time and clock offset are measured
+	static final int PING_INTERVAL_MILLIS = 1000;
+	
+	// Bytes queued for one client before the slow client policy applies, and the most ever queued before it's disconnected
+	// Set with -Dquiz.outboundHighWater=<bytes> and -Dquiz.outboundLimit=<bytes>, the policy with -Dquiz.slowClientPolicy
+	static final int OUTBOUND_HIGH_WATER = Math.max(1024, Integer.getInteger("quiz.outboundHighWater", 64 * 1024));
+	static final int OUTBOUND_LIMIT = Math.max(OUTBOUND_HIGH_WATER, Integer.getInteger("quiz.outboundLimit", 1024 * 1024));
+	
+	// Log every broadcast's delivery time, which is otherwise only kept in the metrics (-Dquiz.logBroadcasts=true)
+	static final boolean LOG_BROADCASTS = Boolean.getBoolean("quiz.logBroadcasts");
+
+	// Client IDs handed out in one room must stay below this
+	static final int MAX_CLIENT_ID = 1 << 18;
+	
+	// Questions played in each game
+	static final int QUESTIONS_PER_GAME = 20;
+	
 	public static void main(String[] args)
 	{
 		int portNumber = 3849;
 		
+		// Choose how client connections and control threads are run
+		ServerThreads.setMode(args);
+		
 		// Sockets
-		ServerSocket serverSocket = null;
-		DatagramSocket dgSocket = null;
+		ServerSocketChannel serverChannel = null;
+		DatagramChannel dgChannel = null;
+		
+		// Event loops that multiplex every client connection (unused when each client has its own thread)
+		int numEventLoops = ServerThreads.usesEventLoops() ? Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors())) : 0;
+		EventLoop[] eventLoops = new EventLoop[numEventLoops];
 		
 		try 
 		{
-			// Create a socket for TCP communication
-			serverSocket = new ServerSocket(portNumber);
+			// Create a channel for TCP communication
+			serverChannel = ServerSocketChannel.open();
+			serverChannel.bind(new InetSocketAddress(portNumber));
+			
+			// Create a DatagramChannel to listen for incoming UDP packets
+			dgChannel = DatagramChannel.open();
+			dgChannel.bind(new InetSocketAddress(portNumber));
 			
-			// Create a DatagramSocket to listen for incoming UDP packets
-			dgSocket = new DatagramSocket(portNumber);
+			for(int i = 0; i < eventLoops.length; i++)
+			{
+				eventLoops[i] = new EventLoop(i);
+				eventLoops[i].start();
+			}
 		}
 		
 		catch(Exception e) 
@@ -44,208 +80,118 @@ public class Server
 			e.printStackTrace();
 		}
 		
-		// Threads
-		UDPThread udpThread = new UDPThread(dgSocket);
-		udpThread.start();
-		
-		TCPThread tcpThread = new TCPThread(serverSocket, udpThread);
-		RunThread runThread = new RunThread();
-
-		
-
-		// Create answer key for questions (index 0 is empty so answers match with question number)
-		String[] answerKey = new String[21];
-
-		// Obtain answers from text file
+		// Map the question bank once, every room shares it
+		QuestionPack questions = null;
 		try 
 		{
-			File keyFile = new File("questions/answer_key.txt");
-			Scanner scanner = new Scanner (new FileInputStream(keyFile));
-			
-			int index = 1;
-
-			// Read values from file
-			while(scanner.hasNext() && index < answerKey.length)
-			{
-				answerKey[index] = scanner.nextLine().trim();
-				index++;
-			}
-			
-			scanner.close();
+			questions = new QuestionPack(Paths.get("questions", "questions.pack"));
+			System.out.println("Loaded " + questions.getNumQuestions() + " questions");
 		} 
 		
-		catch (FileNotFoundException e) 
+		catch (IOException e) 
 		{
-			System.err.println("ERROR initalizing answer key");
-			e.printStackTrace();
+			System.err.println("ERROR loading questions: " + e.getMessage());
+			System.err.println("Build the question pack from the text files with: java QuestionPackBuilder questions");
+			System.exit(1);
 		}
 		
-
-		try 
+		// Rooms read questions through a bounded cache, so a bank of any size keeps the heap flat
+		QuestionCache questionCache = new QuestionCache(questions, QuestionCache.DEFAULT_CAPACITY);
+		
+		// On a LAN, questions can be sent once per room to a multicast group instead of once per client
+		QuestionMulticaster multicaster = null;
+		try
 		{
-			System.out.println("Server created");
-			System.out.println("Waiting for client connections...");
-
-			// Client connections
-			int clientID = 1;
-
-			// Start waiting for "start" command
-			runThread.start();
+			multicaster = QuestionMulticaster.fromProperties();
 
-			// Accept connections from clients before game starts
-			while(!runThread.isRunCommandReceived())
-			{
-				try 
-				{					
-					// Safely remove closed sockets
-					Iterator<Socket> socketIterator = tcpThread.getClientSockets().iterator();
-					while(socketIterator.hasNext()) 
-					{
-					    Socket socket = socketIterator.next();
-					    if(socket.isClosed()) 
-					    {
-					        System.out.println("Client disconnected... Removing socket...");
-					        socketIterator.remove(); // Safe removal
-					    }
-					}
-
-					// Safely remove killed clients
-					Iterator<ClientThread> clientThreadIterator = tcpThread.getClientThreads().iterator();
-					while(clientThreadIterator.hasNext()) 
-					{
-					    ClientThread client = clientThreadIterator.next();
-					    if(client.isKilled()) 
-					    {
-					        System.out.println("Removing thread for client " + client.getClientID() + "...");
-					        clientThreadIterator.remove(); // Safe removal
-					        System.out.println("Remaining Clients: " + tcpThread.getNumClients());
-					    }
-					}
-					
-					// Roll back disconnected clientIDs before game starts
-					clientID = tcpThread.getNumClients() + 1;
-					
-					// Set a timeout for accepting new client connections
-					serverSocket.setSoTimeout(1000);
-
-					// Accept connection
-					Socket clientSocket = serverSocket.accept();
-					System.out.println("Connection accepted from Client " + clientID);
+			if(multicaster != null)
+				System.out.println("Multicasting questions to " + multicaster.getGroup());
+		}
 
-					// Add client socket to list
-					ClientThread clientThread = new ClientThread(clientSocket, clientID, tcpThread);
-					tcpThread.addClientThread(clientThread);
-					tcpThread.addClientSocket(clientSocket);
-					clientThread.start();
+		catch(IOException e)
+		{
+			System.err.println("ERROR opening multicast channel: " + e.getMessage() + ". Sending questions over TCP");
+		}
 
-					// Increment clientID
-					clientID++;
-				} 
-				
-				catch(SocketTimeoutException e) 
-				{
-					// Allow the main thread to periodically check for the "start" command
-					continue;
-				} 
-				
-				catch(IOException e) 
-				{
-					System.err.println("ERROR handling client acceptances");
-					e.printStackTrace();
-					break;
-				}
-			}
+		// Game events are journaled so a crash doesn't lose the games being played
+		GameJournal journal = null;
+		try
+		{
+			journal = GameJournal.fromProperties();
+		}
 
-			// Continue listening for TCP connections after game starts
-			tcpThread.setCurrentClientID(clientID);
-			tcpThread.start();
-			System.out.println("Game started");
+		catch(IOException e)
+		{
+			System.err.println("ERROR opening game journal: " + e.getMessage() + ". Games won't survive a restart");
+		}
 
-			// Tell clients to start game
-			tcpThread.writeStringToAllClients("start");
-			
-			// Begin game with question 1
-			for(int questionNum = 1; questionNum < answerKey.length; questionNum++)
+		RoomManager roomManager = new RoomManager(questionCache, multicaster, journal);
+		
+		// Rebuild the games that were under way when the server went down, players rejoin with their old IDs
+		if(journal != null)
+		{
+			for(GameJournal.RecoveredRoom recovered : journal.getRecoveredRooms())
 			{
-				// Clear queue for this question
-				udpThread.clearPolls();
-				
-				String fileName = "./questions/question" + questionNum + ".txt";
-				tcpThread.writeFileToAllClients(fileName);
-				
-				Thread.sleep(2000);
+				roomManager.restoreRoom(recovered);
+			}
 
-				// Wait for polling to complete
-				Boolean pollingIncomplete;
-				while(pollingIncomplete = !udpThread.isPollingComplete())
-				{
-					// Do nothing
-					Thread.sleep(250);
-				}
+			journal.start();
+		}
 
-				// Get ID for client who won the poll
-				int ackClientID = udpThread.getFirstPoll();
+		// Open the first room so a plain "start" works like it always has
+		if(roomManager.getRooms().isEmpty())
+			roomManager.createRoom(RoomManager.DEFAULT_CAPACITY);
+		
+		// Threads
+		UDPThread udpThread = new UDPThread(dgChannel, roomManager);
+		TCPThread tcpThread = new TCPThread(serverChannel, eventLoops, roomManager);
+		RunThread runThread = new RunThread(roomManager);
+		
+		// Counters and gauges are read from their owners whenever the metrics are scraped
+		ServerMetrics.counter("quiz_udp_packets_total", "Datagrams received", udpThread::getNumPackets);
+		ServerMetrics.counter("quiz_udp_garbage_packets_total", "Datagrams that weren't valid buzz datagrams", udpThread::getNumGarbagePackets);
+		ServerMetrics.counter("quiz_udp_dropped_packets_total", "Valid datagrams that were ignored", udpThread::getNumDroppedPackets);
+		ServerMetrics.gauge("quiz_rooms", "Open rooms", () -> roomManager.getRooms().size());
+		ServerMetrics.gauge("quiz_connected_clients", "Clients playing in any room", roomManager::getNumClients);
+		ServerMetrics.gauge("quiz_round_buzzes", "Buzzes recorded this round, summed over rooms", roomManager::getNumBuzzes);
+		ServerMetrics.gauge("quiz_pending_deadlines", "Phase deadlines waiting on the timer wheel", () -> roomManager.getTimers().getNumPending());
+		ServerMetrics.counter("quiz_question_cache_hits_total", "Questions read from memory", questionCache::getHits);
+		ServerMetrics.counter("quiz_question_cache_misses_total", "Questions read from the pack because they weren't prefetched", questionCache::getMisses);
+		ServerMetrics.gauge("quiz_question_cache_size", "Questions held in memory", questionCache::size);
+		ServerMetrics.counter("quiz_socket_writes_total", "Gathering writes to client sockets", ClientConnection::getNumSocketWrites);
+		ServerMetrics.counter("quiz_messages_written_total", "Messages written to client sockets", ClientConnection::getNumMessagesWritten);
+		ServerMetrics.counter("quiz_slow_client_stale_dropped_total", "Queued pings and standings replaced by newer ones for slow clients", ClientConnection::getNumStaleDropped);
+		ServerMetrics.counter("quiz_slow_client_lagging_total", "Times a client was marked lagging", ClientConnection::getNumMarkedLagging);
+		ServerMetrics.counter("quiz_slow_client_disconnects_total", "Clients disconnected for not keeping up", ClientConnection::getNumSlowDisconnects);
+		ServerMetrics.gauge("quiz_lagging_clients", "Clients currently marked lagging", ClientConnection::getNumLagging);
+		if(multicaster != null)
+		{
+			ServerMetrics.counter("quiz_multicast_questions_total", "Questions sent to the multicast group", multicaster::getNumSent);
+			ServerMetrics.counter("quiz_multicast_oversized_total", "Questions too large for one datagram, sent over TCP", multicaster::getNumTooLarge);
+			ServerMetrics.counter("quiz_multicast_repairs_total", "Questions resent over TCP to clients that missed the datagram", multicaster::getNumRepairs);
+		}
+		if(journal != null)
+		{
+			ServerMetrics.counter("quiz_journal_events_total", "Game events written to the journal", journal::getNumWritten);
+			ServerMetrics.counter("quiz_journal_syncs_total", "Times the journal was synced to disk", journal::getNumSyncs);
+			ServerMetrics.gauge("quiz_journal_pending_events", "Game events queued for the journal", journal::getNumPending);
+			ServerMetrics.counter("quiz_journal_dropped_events_total", "Game events dropped because the journal fell a whole ring behind", journal::getNumDropped);
+		}
+		
+		ServerMetrics.start(portNumber + 1);
 
-				// Alert clients whether they won the poll
-				tcpThread.ackClients(ackClientID);
+		try 
+		{
+			System.out.println("Server created");
+			System.out.println("Waiting for client connections...");
 
-				// At least one client polled (skip waiting for answer if no clients poll)
-				if(ackClientID != -1)
-				{
-					// Wait for answer from client
-					Boolean answerReceived;
-					while(answerReceived = !tcpThread.isAnswerReceived())
-					{
-						// Do nothing
-						Thread.sleep(0);
-					}
-					
-					// Get status of client's answer (e.g. correct, incorrect)
-					String answerStatus = tcpThread.isClientAnswerCorrect(ackClientID, answerKey[questionNum]);
+			// Accept connections and buzzes for every room
+			ServerThreads.start(udpThread, "UDPThread");
+			ServerThreads.start(tcpThread, "TCPThread");
 
-					// Inform clients of answer status
-					tcpThread.informClientsOfStatus(answerStatus, ackClientID);
-				}
-				
-				// Wait a few seconds before issuing next question (or ending game)
-				Thread.sleep(4000);
-				
-				// If there are more questions, ready clients for next question
-				if(questionNum < answerKey.length - 1)
-				{
-					tcpThread.writeStringToAllClients("next");
-					tcpThread.setAnswerReceived(false);
-					Thread.sleep(100);
-				}
-				
-				// If this was the last question, signal the clients that the game is over
-				else
-				{
-					// Obtain clientID of the winning client
-					ArrayList<Integer> winningClientIDs = tcpThread.getWinners();
-					
-					// Alert clients that game has ended, and alert winning client that they won
-					tcpThread.writeEndToAllClients(winningClientIDs);
-					
-					// Print winner(s)
-					if(winningClientIDs.size() > 1)
-					{
-						// Multiple winners
-						System.out.print("Winners: ");
-						
-						for(int i = 0; i < winningClientIDs.size() - 1; i++)
-						{
-							System.out.print("Client " + winningClientIDs.get(i) + ", ");
-						}
-						
-						System.out.println("Client " + winningClientIDs.get(winningClientIDs.size()-1));
-					}
-					
-					// Single winner
-					else
-						System.out.println("WINNER: Client " + winningClientIDs.get(0));
-				}
-			}
+			// Read commands until "quit" is entered
+			ServerThreads.start(runThread, "RunThread");
+			runThread.awaitQuit();
 		} 
 		catch(Exception e) 
 		{
@@ -255,6 +201,10 @@ public class Server
 		}
 
 		// Continue execution on the main thread
+		// Events queued since the journal's last sync would be lost to the exit
+		if(journal != null)
+			journal.close();
+
 		System.out.println("Finished");
 		System.exit(0);
 	}
@@ -263,348 +213,190 @@ public class Server
 
 
 
-// Thread to wait for start of game
-class RunThread extends Thread 
+// Thread that reads server commands from the terminal
+class RunThread implements Runnable 
 {
-	private volatile boolean runCommandReceived = false;
-	private final Object lock = new Object();
+	private final RoomManager roomManager;
+	private final CountDownLatch quitCommand = new CountDownLatch(1);
+
+	public RunThread(RoomManager roomManager)
+	{
+		this.roomManager = roomManager;
+	}
 
 	@Override
 	public void run()
 	{
-		// Wait continuously for the "start" command
 		BufferedReader terminalInput = new BufferedReader(new InputStreamReader(System.in));
-		while(!runCommandReceived) 
+		printCommands();
+		
+		while(true) 
 		{
-			System.out.println("Enter 'start' to begin game:");
-			String input = "";
+			String input;
 
 			try 
 			{
-				input = terminalInput.readLine().trim();
+				input = terminalInput.readLine();
 			}
 			catch(IOException e) 
 			{
 				System.err.println("ERROR with input");
 				e.printStackTrace();
+				break;
 			}
+			
+			// Terminal closed
+			if(input == null)
+				break;
 
-			if(input.equalsIgnoreCase("start")) 
+			String[] command = input.trim().split("\\s+");
+			
+			try
 			{
-				synchronized (lock) 
+				if(command[0].equalsIgnoreCase("quit"))
+					break;
+				
+				else if(command[0].equalsIgnoreCase("start"))
+					startRoom(command.length > 1 ? Integer.parseInt(command[1]) : 1);
+				
+				else if(command[0].equalsIgnoreCase("create"))
+					createRoom(command.length > 1 ? Integer.parseInt(command[1]) : RoomManager.DEFAULT_CAPACITY);
+				
+				else if(command[0].equalsIgnoreCase("remove") && command.length > 1)
+					removeRoom(Integer.parseInt(command[1]));
+				
+				else if(command[0].equalsIgnoreCase("list"))
+					listRooms();
+				
+				else if(!command[0].isEmpty())
 				{
-					// Notify main thread
-					runCommandReceived = true;
-					lock.notify();
+					System.out.println("Invalid command.");
+					printCommands();
 				}
-			} 
-
-			else
-				System.out.println("Invalid command. Please enter 'start' to begin.");
+			}
+			
+			catch(NumberFormatException e)
+			{
+				System.out.println("Invalid number: " + e.getMessage());
+			}
 		}
 
-		try 
-		{
-			terminalInput.close();
-		} 
-		catch(IOException e) 
-		{
-			System.err.println("ERROR closing input stream");
-			e.printStackTrace();
-		}
+		// Notify main thread
+		quitCommand.countDown();
 	}
-
-	public boolean isRunCommandReceived() 
+	
+	private void printCommands()
 	{
-		return runCommandReceived;
+		System.out.println("Commands: 'start [room]' to begin a game (room 1 by default), 'create [capacity]' to open a room, "
+				+ "'remove <room>' to close a room, 'list' to show rooms, 'quit' to stop the server");
 	}
-}
-
-// Thread for mid-game client connections and terminating clients
-class TCPThread extends Thread 
-{
-	// Clients
-	private ArrayList<ClientThread> clientThreads;
-	private ArrayList<Socket> clientSockets;
-	private int clientID;
 	
-	// Indicate whether game has started
-	private boolean gameInProgress;
-	
-	// Indicate whether answer has been received by client
-	private Boolean answerReceived;
-
-	// Server
-	private ServerSocket serverSocket;
-	
-	// UDPThread
-	UDPThread udpThread;
-
-	// Constructor to initialize the socket
-	public TCPThread(ServerSocket serverSocket, UDPThread udpThread) 
+	private void startRoom(int roomID)
 	{
-		// Client list
-		clientThreads = new ArrayList<ClientThread>();
-		clientSockets = new ArrayList<Socket>();
-
-		this.serverSocket = serverSocket;
+		GameRoom room = roomManager.getRoom(roomID);
 		
-		this.udpThread = udpThread;
+		if(room == null)
+			System.out.println("Room " + roomID + " does not exist");
 		
-		gameInProgress = false;
-		answerReceived = false;
-	}
-
-	// Add a client to thread list
-	public void addClientThread(ClientThread clientThread)
-	{
-		clientThreads.add(clientThread);
-	}
-
-	// Add a client to socket list
-	public void addClientSocket(Socket clientSocket)
-	{
-		clientSockets.add(clientSocket);
-	}
-	
-	// Get number of currently active clients
-	public int getNumClients()
-	{
-		return clientSockets.size();
-	}
-	
-	// Set value of current clientID to be assigned
-	public void setCurrentClientID(int currentClientID)
-	{
-		clientID = currentClientID;
-	}
-	
-	// Indicate whether the game has started
-	public boolean gameInProgress()
-	{
-		return gameInProgress;
+		else if(room.gameInProgress())
+			System.out.println("Room " + roomID + " has already started");
+		
+		else
+			room.start();
 	}
 	
-	// Get a list of current client's threads
-	public ArrayList<ClientThread> getClientThreads()
+	private void createRoom(int capacity)
 	{
-		return clientThreads;
+		GameRoom room = roomManager.createRoom(capacity);
+		
+		if(room == null)
+			System.out.println("No room IDs left");
+		else
+			System.out.println("Created room " + room.getRoomID());
 	}
 	
-	// Get a list of current client's sockets
-	public ArrayList<Socket> getClientSockets()
+	private void removeRoom(int roomID)
 	{
-		return clientSockets;
+		GameRoom room = roomManager.getRoom(roomID);
+		
+		if(room == null)
+			System.out.println("Room " + roomID + " does not exist");
+		else
+			room.close();
 	}
 	
-	// Write string to all current clients
-	public void writeStringToAllClients(String str) 
+	private void listRooms()
 	{
-		for(ClientThread client : clientThreads)
+		for(GameRoom room : roomManager.getRooms())
 		{
-			client.writeStringToClient(str);
+			System.out.println("Room " + room.getRoomID() + ": " + room.getNumClients() + " clients, " + room.getPhaseName());
 		}
 	}
 	
-	// Write file to all current clients
-	public void writeFileToAllClients(String fileName)
+	// Block the calling thread until the "quit" command is entered
+	public void awaitQuit() throws InterruptedException
 	{
-		for(ClientThread client : clientThreads)
-		{
-			client.writeFileToClient(fileName);
-		}
+		quitCommand.await();
 	}
-	
-	// Alert clients whether they won the poll, or if nobody polled
-	public void ackClients(int ackClientID)
-	{
-		// At least one client polled
-		if(ackClientID != -1)
-		{
-			for (ClientThread client : clientThreads)
-			{
-				// Alert client with the fastest poll that they can answer
-				if(client.getClientID() == ackClientID)
-					client.writeStringToClient("ack");
+}
 
-				// Alert other clients that they were late in polling
-				else
-					client.writeStringToClient("negative-ack");
-			}
-		}
-		
-		// No clients polled
-		else
-		{
-			writeStringToAllClients("no-poll");
-		}	
-	}
+// Thread for accepting client connections, each client joins a room once it says which one it wants
+class TCPThread implements Runnable 
+{
+	// Server
+	private ServerSocketChannel serverChannel;
+	private EventLoop[] eventLoops;
+	private int nextEventLoop;
 	
-	// Obtain and check answer from client who won polling, returns whether they answered correctly
-	public String isClientAnswerCorrect(int clientID, String correctAnswer)
-	{
-		String answer = null;
-		
-		for (ClientThread client : clientThreads)
-		{
-			// Obtain answer from client with the fastest poll
-			if(client.getClientID() == clientID)
-				answer = client.getClientAnswer();
-		}
-		
-		// Client answered correctly
-		if(answer.equals(correctAnswer))
-			return "correct";
-		
-		// Client did not answer
-		else if(answer.equals("no answer"))
-			return "penalty";
-		
-		// Client answered incorrectly
-		else
-			return "incorrect";
-	}
+	private final RoomManager roomManager;
 	
-	// Tell each client whether the question was answered correctly
-	public void informClientsOfStatus(String status, int ackClientID)
+	// Number of connections accepted, used to name client threads
+	private long numAccepted;
+
+	// Constructor to initialize the socket
+	public TCPThread(ServerSocketChannel serverChannel, EventLoop[] eventLoops, RoomManager roomManager) 
 	{
-		for (ClientThread client : clientThreads)
-		{
-			// Inform answering client whether they answered correctly
-			if(client.getClientID() == ackClientID)
-			{
-				client.writeStringToClient(status);
-				client.updateClientScore(status);
-			}
-			
-			// Inform other clients whether the question was answered correctly and who answered it
-			else
-				client.writeStringToClient("alt_" + status + ackClientID);
-		}
+		this.serverChannel = serverChannel;
+		this.eventLoops = eventLoops;
+		this.roomManager = roomManager;
+		nextEventLoop = 0;
+		numAccepted = 0;
 	}
 	
-	// Get client ID of winning client
-	public ArrayList<Integer> getWinners()
+	// Hand a newly accepted connection to an event loop (or its own thread) to wait for its hello
+	private void addClient(SocketChannel channel) throws IOException
 	{
-		// Create list for winners
-		ArrayList<Integer> winners = new ArrayList<Integer>();
-		
-		// Track high score across the clients
-		int winningScore = clientThreads.get(0).getClientScore();
-		
-		for (ClientThread client : clientThreads)
+		// Spread clients evenly across the event loops
+		EventLoop eventLoop = null;
+		if(eventLoops.length > 0)
 		{
-			int score = client.getClientScore();
-			
-			// Update highScore if this client has a better score
-			if(score > winningScore)
-			{
-				winningScore = score;
-			}
+			eventLoop = eventLoops[nextEventLoop];
+			nextEventLoop = (nextEventLoop + 1) % eventLoops.length;
 		}
 		
-		// Add clients with highScore to winners list
-		for (ClientThread client : clientThreads)
-		{
-			if(client.getClientScore() == winningScore)
-				winners.add(client.getClientID());
-		}
+		// Clients without an event loop block on their own thread
+		channel.configureBlocking(eventLoop == null);
+		ClientConnection client = new ClientConnection(channel, eventLoop, roomManager);
 		
-		// Return clientID of the winning client
-		return winners;
-	}
-	
-	// Alert clients that game is over, and whether they won
-	public void writeEndToAllClients(ArrayList<Integer> winners)
-	{
-		for (ClientThread client : clientThreads)
-		{
-			// Client has the highest score for the game
-			if(winners.contains(client.getClientID()))
-				client.writeStringToClient("win");
-			
-			// Client did not win
-			else
-				client.writeStringToClient("end");				
-		}
-	}
-	
-	// Set the value for whether the client's answer was received
-	public void setAnswerReceived(Boolean isAnswerReceived) 
-	{
-		answerReceived = isAnswerReceived;
-	}
-	
-	// Indicate whether answer has been received by the client who won polling
-	public Boolean isAnswerReceived()
-	{
-		return answerReceived;
+		if(eventLoop != null)
+			eventLoop.register(channel, client);
+		else
+			ServerThreads.start(client::readLoop, "Client-" + numAccepted);
+		
+		numAccepted++;
 	}
 
 	@Override
 	public void run()
 	{
-		// Indicate game has started
-		gameInProgress = true;
-		
 		while(true)
 		{
 			try 
-			{	
-				// Safely remove closed sockets
-				Iterator<Socket> socketIterator = clientSockets.iterator();
-				while(socketIterator.hasNext()) 
-				{
-				    Socket socket = socketIterator.next();
-				    if(socket.isClosed()) 
-				    {
-				        System.out.println("Client disconnected... Removing socket...");
-				        socketIterator.remove(); // Safe removal
-				    }
-				}
-
-				// Safely remove killed clients
-				Iterator<ClientThread> clientThreadIterator = clientThreads.iterator();
-				while(clientThreadIterator.hasNext()) 
-				{
-				    ClientThread client = clientThreadIterator.next();
-				    if(client.isKilled()) 
-				    {
-				        udpThread.removeClientPolls(client.getClientID());
-				    	System.out.println("Removing thread for Client " + client.getClientID() + "...");
-				        clientThreadIterator.remove(); // Safe removal
-				        System.out.println("Remaining Clients: " + getNumClients());
-				    }
-				}
-				
-				if(getNumClients() == 0)
-				{
-					System.out.println("All clients have disconnected. Ending game...");
-					System.exit(0);
-				}
-
-				// Set a timeout for accepting new client connections
-				serverSocket.setSoTimeout(1000);
-
-				// Accept connection
-				Socket clientSocket = serverSocket.accept();
-				System.out.println("Connection accepted from Client " + clientID);
-
-				// Add client socket to list
-				ClientThread clientThread = new ClientThread(clientSocket, clientID, this);
-				clientThreads.add(clientThread);
-				clientSockets.add(clientSocket);
-				clientThread.start();
-
-				// Increment clientID
-				clientID++;
-			}
-			
-			// Prevent blocking if client requests kill
-			catch(SocketTimeoutException e) 
 			{
-				continue;
-			} 
+				// Block until the next client connects
+				SocketChannel channel = serverChannel.accept();
+				addClient(channel);
+			}
 			
 			catch(IOException e) 
 			{
@@ -616,330 +408,86 @@ class TCPThread extends Thread
 	}
 }
 
-// Thread to handle incoming UDP packets
-class UDPThread extends Thread 
+// Thread to handle incoming UDP packets and pass them to the room they're for
+class UDPThread implements Runnable 
 {
-	private DatagramSocket socket;
-	private ConcurrentLinkedQueue<Integer> clientPolls;
+	private DatagramChannel channel;
+	private final RoomManager roomManager;
+	
+	// Datagram counts (only written by this thread)
+	private volatile long numPackets;
+	private volatile long numGarbagePackets;
+	private volatile long numDroppedPackets;
 
 	// Constructor to initialize the socket
-	public UDPThread(DatagramSocket socket)
-	{
-		this.socket = socket;
-		clientPolls = new ConcurrentLinkedQueue<Integer>();
-	}
-	
-	// Indicate whether polling has completed
-	public boolean isPollingComplete()
+	public UDPThread(DatagramChannel channel, RoomManager roomManager)
 	{
-		Boolean isComplete = clientPolls.contains(-1);
-		
-		// Remove all -1s from queue
-		if(isComplete)
-		{	
-			ArrayList<Integer> temp = new ArrayList<>();
-			temp.add(-1);
-			
-			clientPolls.removeAll(temp);
-		}
-		
-		return isComplete;
+		this.channel = channel;
+		this.roomManager = roomManager;
 	}
-	
-	// Print contents of queue
-	public void printQueue()
+
+	// Number of datagrams received, and how many of them weren't valid buzz datagrams
+	public long getNumPackets()
 	{
-		System.out.println("QUEUE: ");
-		for(int i = 0; i < clientPolls.size(); i++)
-		{
-			Object[] array = clientPolls.toArray();
-			
-			if(i != clientPolls.size() - 1 && clientPolls.size() > 1)
-				System.out.print(array[i].toString() + ", ");
-			
-			else
-				System.out.println(array[i].toString());
-		}
+		return numPackets;
 	}
 	
-	// Remove all polls from queue
-	public void clearPolls()
+	public long getNumGarbagePackets()
 	{
-		clientPolls.clear();
+		return numGarbagePackets;
 	}
 	
-	// Remove all polls associated with a specific client
-	public void removeClientPolls(int clientID)
+	// Well-formed datagrams that were ignored (unknown room, late or repeated buzz)
+	public long getNumDroppedPackets()
 	{
-		// Remove all -1s from queue	
-			ArrayList<Integer> temp = new ArrayList<>();
-			temp.add(clientID);
-
-			clientPolls.removeAll(temp);
-	}
-	
-	// Return first client that polled and clear queue
-	public int getFirstPoll()
-	{	
-		// -1 signals to server that no clients polled
-		int first = -1;
-		
-		// If at least 1 client polls
-		if(clientPolls.size() > 0)
-			first = clientPolls.poll();
-				
-		return first;
+		return numDroppedPackets;
 	}
 
 	@Override
 	public void run()
 	{
+		// Reused for every datagram (anything longer than a buzz datagram is truncated and rejected)
+		ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(64);
+		
 		try 
 		{
-			// Byte array to specify length of incoming packets
-			byte[] receiveData = new byte[1024];
-
 			// Infinite loop to continuously listen for incoming packets
 			while(true) 
 			{
-				// Create a DatagramPacket to receive incoming UDP packets
-				DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
-
-				// Receive data from the client
-				socket.receive(receivePacket);
-
-				// Convert the received data to a string (then to an integer)
-				String receivedID = new String(receivePacket.getData()).trim();
-				int id = Integer.valueOf(receivedID);
+				receiveBuffer.clear();
+				channel.receive(receiveBuffer);
+				receiveBuffer.flip();
+				numPackets++;
 				
-				// If data represents a buzz from a client
-				if(id >= 0)
-					System.out.println("Received buzz from Client " + id);
+				if(receiveBuffer.remaining() != Protocol.DATAGRAM_SIZE)
+				{
+					numGarbagePackets++;
+					continue;
+				}
+				
+				byte opcode = receiveBuffer.get();
+				GameRoom room = roomManager.getRoom(receiveBuffer.getInt());
+				int id = receiveBuffer.getInt();
+				long clientTime = receiveBuffer.getLong();
+				
+				if(room == null)
+					numDroppedPackets++;
+				
+				// Buzz from a client (only a client's first buzz of the round counts)
+				else if(opcode == Protocol.BUZZ)
+				{
+					if(!room.buzz(id, clientTime))
+						numDroppedPackets++;
+				}
 				
-				// Add data to queue
-				clientPolls.add(Integer.valueOf(id));
+				else
+					numGarbagePackets++;
 			}
 		} 
-		catch(Exception e) 
-		{
-			e.printStackTrace();
-		}
-	}
-}
-
-// Thread to handle each client separately
-class ClientThread extends Thread 
-{
-	// TCP
-	private final Socket clientSocket;
-	private TCPThread tcpThread;
-
-	// Client info
-	private final int clientID;
-	private boolean isKilled;
-	private String userAnswer;
-	private int score;
-	
-	// Communication
-	private ObjectOutputStream writer;
-	private ObjectInputStream reader;
-
-	public ClientThread(Socket clientSocket, int clientID, TCPThread tcpThread) 
-	{
-		this.clientSocket = clientSocket;
-		this.clientID = clientID;
-		
-		// Initial info for client
-		isKilled = false;
-		userAnswer = null;
-		score = 0;
-
-		this.tcpThread = tcpThread;
-		
-		try 
-		{
-			writer = new ObjectOutputStream(clientSocket.getOutputStream());
-			reader = new ObjectInputStream(clientSocket.getInputStream());
-		} 
-		
 		catch(IOException e) 
 		{
-			System.err.println("ERROR initializing writer/reader for Client " + clientID);
+			System.err.println("ERROR receiving UDP packets");
 			e.printStackTrace();
 		}
 	}
-
-	// Return clientID
-	public int getClientID() 
-	{
-		return clientID;
-	}
-
-	// Return whether this client has been killed
-	public boolean isKilled() 
-	{
-		return isKilled;
-	}
-	
-	// Write file content to client as a byte array
-	public void writeFileToClient(String fileName)
-	{
-		try 
-		{
-			// Get file content as an array
-			byte[] fileContent;
-			fileContent = Files.readAllBytes(Paths.get(fileName));
-			
-			// Send the size of the segment
-	        writer.writeObject(Integer.valueOf(fileContent.length));
-	    
-	        // Send the actual content
-	        writer.write(fileContent, 0, fileContent.length);
-	        writer.flush();  
-		} 
-		
-		catch (IOException e) 
-		{
-			System.err.println("ERROR sending file to client " + clientID);
-		}         
-    }
-	
-	// Write a string to client
-	public void writeStringToClient(String str) 
-	{
-		try 
-		{
-			writer.writeObject(str);
-			writer.flush();
-		} 
-		
-		catch(SocketException e1)
-		{
-			System.err.println("ERROR writing string to client " + clientID + "... Socket is closed");
-		}
-		
-		catch(IOException e2) 
-		{
-			System.err.println("ERROR writing string to client " + clientID);
-		}
-	}
-	
-	// Write an integer to client
-	public void writeIntToClient(int x) 
-	{
-		try 
-		{
-			writer.writeInt(x);
-			writer.flush();
-		} 
-		
-		catch(SocketException e1)
-		{
-			System.err.println("ERROR writing integer to client " + clientID + "... Socket is closed");
-		}
-		
-		catch(IOException e2) 
-		{
-			System.err.println("ERROR writing integer to client " + clientID);
-		}	
-	}
-	
-	// Get answer if this client won the poll
-	public String getClientAnswer()
-	{
-		String answer = userAnswer;
-		
-		// Reset client's answer
-		userAnswer = null;
-		
-		// Return client's answer
-		return answer;
-	}
-	
-	public void updateClientScore(String status)
-	{
-		// Client answered correctly
-		if(status.equals("correct"))
-			score += 10;
-		
-		// Client answered incorrectly
-		else if(status.equals("incorrect"))
-			score -= 10;
-		
-		// Client didn't answer after polling
-		else if(status.equals("penalty"))
-			score -= 20;
-	}
-	
-	// Return current score of this client
-	public int getClientScore()
-	{
-		return score;
-	}
-
-	@Override
-	public void run() 
-	{
-		// Send client ID to the client
-		writeIntToClient(clientID);
-		
-		// Signal client to wait for next question if game has already started
-		if(tcpThread.gameInProgress())
-			writeStringToClient("wait");
-
-		while(true)
-		{
-			// End client thread
-			if(clientSocket.isClosed())
-				break;
-
-			// Listen for incoming TCP messages from client
-			try
-			{
-				clientSocket.setSoTimeout(1000);
-				Object input = reader.readObject();
-
-				// Server receives incoming TCP message from client
-				if(input instanceof String)
-				{
-					// Client requests kill
-					if(((String)input).equals("kill"))
-					{
-						clientSocket.close();
-						System.out.println("Killing Client " + clientID + "...");
-						isKilled = true;
-					}
-					
-					// Client submitted answer
-					else 
-					{
-						// Obtain user's answer
-						userAnswer = (String)input;
-						
-						// Alert server that answer has been received
-						tcpThread.setAnswerReceived(true);
-					}
-				}
-			}
-
-			catch(SocketTimeoutException e) 
-			{
-				// Prevent blocking while listening for object
-				continue;
-			}
-
-			catch(ClassNotFoundException e) 
-			{
-				System.err.println("ERROR receiving input while closing");
-				e.printStackTrace();
-			}
-
-			catch(IOException e) 
-			{
-				System.err.println("ERROR closing client");
-				e.printStackTrace();
-			} 
-		}
-	} 
-
-}
\ No newline at end of file
+}
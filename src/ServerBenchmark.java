@@ -0,0 +1,417 @@
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Microbenchmarks for the server's hot paths, run from the src directory with: java ServerBenchmark [client counts...]
+// Every benchmark runs once per client count and reports throughput and bytes allocated per operation (across all threads)
+public class ServerBenchmark
+{
+	private static final int[] DEFAULT_CLIENT_COUNTS = {10, 1000, 10000};
+
+	private static final int WARMUP_ITERATIONS = 3;
+	private static final int MEASURED_ITERATIONS = 5;
+	private static final long ITERATION_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	// Results are folded in here so the JIT can't throw the work away
+	static volatile long sink;
+
+	private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+	// Benchmark results go here, the server's own logging is discarded while benchmarks run
+	private static final PrintStream out = System.out;
+
+	// A single benchmarked operation
+	interface Operation
+	{
+		long run() throws Exception;
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		int[] clientCounts = DEFAULT_CLIENT_COUNTS;
+
+		if(args.length > 0)
+		{
+			clientCounts = new int[args.length];
+			for(int i = 0; i < args.length; i++)
+				clientCounts[i] = Integer.parseInt(args[i]);
+		}
+
+		QuestionPack questions = new QuestionPack(Paths.get("questions", "questions.pack"));
+		RoomManager roomManager = new RoomManager(new QuestionCache(questions, QuestionCache.DEFAULT_CAPACITY), null, null);
+
+		// Clients are served by event loops, the same way as the server's default mode
+		EventLoop[] eventLoops = new EventLoop[Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()))];
+		for(int i = 0; i < eventLoops.length; i++)
+		{
+			eventLoops[i] = new EventLoop(i);
+			eventLoops[i].start();
+		}
+
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+		out.printf("%-20s %8s %16s %10s %14s%n", "Benchmark", "Clients", "ops/s", "error", "B/op");
+
+		for(int numClients : clientCounts)
+		{
+			benchmarkCodec(numClients);
+			benchmarkBuzzes(roomManager, numClients);
+
+			// The remaining benchmarks need a room full of connected clients
+			Room room;
+			try
+			{
+				room = new Room(roomManager, eventLoops, numClients);
+			}
+
+			catch(IOException e)
+			{
+				out.printf("%-20s %8d   skipped, couldn't connect clients (%s), try raising ulimit -n%n", "room", numClients, e.getMessage());
+				continue;
+			}
+
+			try
+			{
+				benchmarkRoom(room, numClients);
+			}
+			finally
+			{
+				room.close();
+			}
+		}
+
+		System.exit(0);
+	}
+
+	// Encode one ANSWER frame per client into a single buffer, then decode them the way ClientConnection does
+	private static void benchmarkCodec(int numClients) throws Exception
+	{
+		byte[] answer = "Minecraft".getBytes(StandardCharsets.UTF_8);
+		ByteBuffer inbound = ByteBuffer.allocate(numClients * (Protocol.HEADER_SIZE + answer.length));
+
+		measure("encode+decode", numClients, () ->
+		{
+			inbound.clear();
+			for(int i = 0; i < numClients; i++)
+				inbound.put(Protocol.frame(Protocol.ANSWER, answer));
+			inbound.flip();
+
+			long length = 0;
+			int frameSize;
+			while((frameSize = Protocol.completeFrameSize(inbound)) != -1)
+			{
+				int frameEnd = inbound.position() + frameSize;
+				inbound.position(inbound.position() + Protocol.HEADER_SIZE);
+
+				ByteBuffer payload = inbound.slice();
+				payload.limit(frameSize - Protocol.HEADER_SIZE);
+				inbound.position(frameEnd);
+
+				length += Protocol.decodeString(payload).length();
+			}
+
+			return length;
+		});
+
+		// The client reads the same frames from a blocking stream
+		byte[] stream = new byte[inbound.limit()];
+		inbound.flip();
+		inbound.get(stream);
+
+		measure("readFrame", numClients, () ->
+		{
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(stream));
+
+			long length = 0;
+			for(int i = 0; i < numClients; i++)
+				length += Protocol.readFrame(in).getPayload().remaining();
+
+			return length;
+		});
+	}
+
+	// One round of buzzes: every client's datagram is parsed, routed to its room and arbitrated like UDPThread does
+	private static void benchmarkBuzzes(RoomManager roomManager, int numClients) throws Exception
+	{
+		GameRoom room = roomManager.createRoom(numClients + 1);
+		BuzzArbiter clientPolls = new BuzzArbiter(numClients + 1);
+
+		ByteBuffer datagrams = ByteBuffer.allocateDirect(numClients * Protocol.DATAGRAM_SIZE);
+		for(int clientID = 1; clientID <= numClients; clientID++)
+			datagrams.put(Protocol.datagram(Protocol.BUZZ, room.getRoomID(), clientID, clientID));
+
+		measure("udp buzz round", numClients, () ->
+		{
+			datagrams.clear();
+			while(datagrams.hasRemaining())
+			{
+				byte opcode = datagrams.get();
+				GameRoom target = roomManager.getRoom(datagrams.getInt());
+				int id = datagrams.getInt();
+				long sendTime = datagrams.getLong();
+
+				if(target != null && opcode == Protocol.BUZZ)
+					clientPolls.buzz(id, sendTime);
+			}
+
+			long first = clientPolls.getFirstBuzz();
+			clientPolls.reset();
+			return first;
+		});
+
+		room.close();
+	}
+
+	// Broadcasts, grading and winners for a room with real loopback clients
+	private static void benchmarkRoom(Room room, int numClients) throws Exception
+	{
+		GameRoom gameRoom = room.gameRoom;
+		ByteBuffer countdown = Protocol.countdownFrame(TimeUnit.SECONDS.toMillis(Server.BUZZ_WINDOW_SECONDS));
+
+		measure("fan-out question", numClients, () ->
+		{
+			Broadcast broadcast = gameRoom.writeQuestionToAllClients(1, countdown);
+
+			if(!broadcast.awaitDelivery(30, TimeUnit.SECONDS))
+				throw new IOException("Broadcast wasn't delivered");
+
+			return broadcast.getDeliveryTimeNanos();
+		});
+
+		measure("fan-out status", numClients, () ->
+		{
+			Broadcast broadcast = gameRoom.informClientsOfStatus(Protocol.CORRECT, numClients);
+			gameRoom.flushClients();
+
+			if(!broadcast.awaitDelivery(30, TimeUnit.SECONDS))
+				throw new IOException("Broadcast wasn't delivered");
+
+			return broadcast.getDeliveryTimeNanos();
+		});
+
+		// The end of a round and the start of the next, as the room's worker sends them: status, standings, next, question
+		long writesBefore = ClientConnection.getNumSocketWrites();
+		long messagesBefore = ClientConnection.getNumMessagesWritten();
+		long[] numSteps = new long[1];
+
+		measure("round step", numClients, () ->
+		{
+			gameRoom.informClientsOfStatus(Protocol.CORRECT, numClients);
+			gameRoom.pushLeaderboard();
+			gameRoom.flushClients();
+			gameRoom.writeFrameToAllClients(Protocol.NEXT_FRAME, "next", ClientConnection.FLUSH_BATCHED);
+			Broadcast broadcast = gameRoom.writeQuestionToAllClients(1, countdown);
+
+			if(!broadcast.awaitDelivery(30, TimeUnit.SECONDS))
+				throw new IOException("Broadcast wasn't delivered");
+
+			numSteps[0]++;
+			return broadcast.getDeliveryTimeNanos();
+		});
+
+		double clientSteps = (double)numSteps[0] * numClients;
+		out.printf("%-20s %8d %16.2f writes and %.2f messages per client per step%n", "round step writes", numClients,
+				(ClientConnection.getNumSocketWrites() - writesBefore) / clientSteps,
+				(ClientConnection.getNumMessagesWritten() - messagesBefore) / clientSteps);
+
+		// Spread scores out so there's a single winner
+		for(ClientConnection client : gameRoom.getClients())
+		{
+			for(int i = 0; i < client.getClientID() % 7; i++)
+				client.updateClientScore(Protocol.CORRECT);
+		}
+
+		// The answering client joined last, grading looks it up by ID so the cost shouldn't grow with the room
+		measure("grade answer", numClients, () -> gameRoom.isClientAnswerCorrect(numClients, "Minecraft"));
+
+		measure("winners", numClients, () -> gameRoom.getWinners().size());
+	}
+
+	// Run an operation repeatedly and report its throughput and allocation rate
+	private static void measure(String name, int numClients, Operation operation) throws Exception
+	{
+		for(int i = 0; i < WARMUP_ITERATIONS; i++)
+			runIteration(operation);
+
+		double[] throughput = new double[MEASURED_ITERATIONS];
+		long totalOps = 0;
+		long totalBytes = 0;
+
+		for(int i = 0; i < MEASURED_ITERATIONS; i++)
+		{
+			long bytesBefore = allocatedBytes();
+			long start = System.nanoTime();
+			long ops = runIteration(operation);
+			long elapsed = System.nanoTime() - start;
+
+			totalBytes += allocatedBytes() - bytesBefore;
+			totalOps += ops;
+			throughput[i] = ops * 1e9 / elapsed;
+		}
+
+		double mean = 0;
+		for(double value : throughput)
+			mean += value / throughput.length;
+
+		double variance = 0;
+		for(double value : throughput)
+			variance += (value - mean) * (value - mean) / (throughput.length - 1);
+
+		out.printf("%-20s %8d %16.1f %9.1f%% %14.1f%n", name, numClients, mean, 100 * Math.sqrt(variance) / mean,
+				(double)totalBytes / totalOps);
+	}
+
+	// Run an operation for one iteration's worth of time, returns how many times it ran
+	private static long runIteration(Operation operation) throws Exception
+	{
+		long deadline = System.nanoTime() + ITERATION_NANOS;
+		long ops = 0;
+		long result = 0;
+
+		do
+		{
+			result += operation.run();
+			ops++;
+		}
+		while(System.nanoTime() < deadline);
+
+		sink += result;
+		return ops;
+	}
+
+	// Bytes allocated so far by every live thread (the event loops do most of a broadcast's work)
+	private static long allocatedBytes()
+	{
+		long total = 0;
+
+		for(long bytes : THREADS.getThreadAllocatedBytes(THREADS.getAllThreadIds()))
+		{
+			if(bytes > 0)
+				total += bytes;
+		}
+
+		return total;
+	}
+
+	// A room whose clients are connected over loopback, with a thread that reads and discards everything they're sent
+	private static class Room
+	{
+		final GameRoom gameRoom;
+		final List<SocketChannel> remotes;
+		final Selector drainSelector;
+		final Thread drainThread;
+
+		Room(RoomManager roomManager, EventLoop[] eventLoops, int numClients) throws IOException
+		{
+			gameRoom = roomManager.createRoom(numClients + 1);
+			remotes = new ArrayList<SocketChannel>();
+			drainSelector = Selector.open();
+
+			try(ServerSocketChannel serverChannel = ServerSocketChannel.open())
+			{
+				serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), numClients);
+
+				for(int i = 0; i < numClients; i++)
+				{
+					SocketChannel remote = SocketChannel.open(serverChannel.getLocalAddress());
+					remotes.add(remote);
+
+					SocketChannel channel = serverChannel.accept();
+					channel.configureBlocking(false);
+
+					EventLoop eventLoop = eventLoops[i % eventLoops.length];
+					ClientConnection client = new ClientConnection(channel, eventLoop, roomManager);
+					eventLoop.register(channel, client);
+					gameRoom.addClient(client, 0);
+
+					remote.configureBlocking(false);
+					remote.register(drainSelector, SelectionKey.OP_READ);
+				}
+			}
+
+			catch(IOException e)
+			{
+				close();
+				throw e;
+			}
+
+			drainThread = new Thread(this::drain, "Drain");
+			drainThread.setDaemon(true);
+			drainThread.start();
+		}
+
+		// Read and discard whatever the server sends, like a client that keeps up
+		private void drain()
+		{
+			ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+
+			try
+			{
+				while(drainSelector.isOpen())
+				{
+					drainSelector.select();
+
+					Iterator<SelectionKey> keyIterator = drainSelector.selectedKeys().iterator();
+					while(keyIterator.hasNext())
+					{
+						SelectionKey key = keyIterator.next();
+						keyIterator.remove();
+
+						buffer.clear();
+						if(key.isValid() && ((SocketChannel)key.channel()).read(buffer) == -1)
+							key.cancel();
+					}
+				}
+			}
+
+			catch(Exception e)
+			{
+				// Selector closed
+			}
+		}
+
+		void close()
+		{
+			gameRoom.close();
+
+			for(SocketChannel remote : remotes)
+			{
+				try
+				{
+					remote.close();
+				}
+
+				catch(IOException e)
+				{
+					// Already closed
+				}
+			}
+
+			try
+			{
+				drainSelector.close();
+			}
+
+			catch(IOException e)
+			{
+				// Already closed
+			}
+		}
+	}
+}
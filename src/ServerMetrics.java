@@ -0,0 +1,144 @@
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+// Server metrics, cheap enough to always record and served as text from http://127.0.0.1:<port>/metrics
+// Histograms are recorded on the hot paths, counters and gauges are read from their owners only when scraped
+class ServerMetrics
+{
+	// Time from the start of a broadcast until each client's socket took the message
+	static final LatencyHistogram BROADCAST_CLIENT_DELIVERY = new LatencyHistogram();
+
+	// Time from the start of a broadcast until the last client received it
+	static final LatencyHistogram BROADCAST_DURATION = new LatencyHistogram();
+
+	// Time from a round's first buzz until the ACK reached the winner
+	static final LatencyHistogram BUZZ_TO_ACK = new LatencyHistogram();
+
+	// Time from sending an ACK until the answer arrived (or the server stopped waiting)
+	static final LatencyHistogram ANSWER_WAIT = new LatencyHistogram();
+
+	// Round trip time of every PING/PONG exchange with a client
+	static final LatencyHistogram CLIENT_RTT = new LatencyHistogram();
+
+	// Name of each metric with its type and how to read it, in the order they were registered
+	private static final Map<String, Metric> metrics = new LinkedHashMap<String, Metric>();
+
+	private static HttpServer httpServer;
+
+	static
+	{
+		histogram("quiz_broadcast_client_delivery_seconds", "Time from broadcast start until a client's socket took the message", BROADCAST_CLIENT_DELIVERY);
+		histogram("quiz_broadcast_duration_seconds", "Time from broadcast start until every client had the message", BROADCAST_DURATION);
+		histogram("quiz_buzz_to_ack_seconds", "Time from a round's first buzz until the winner had its ACK", BUZZ_TO_ACK);
+		histogram("quiz_answer_wait_seconds", "Time from sending an ACK until the answer arrived or the deadline passed", ANSWER_WAIT);
+		histogram("quiz_client_rtt_seconds", "Round trip time of PING/PONG exchanges with clients", CLIENT_RTT);
+	}
+
+	// A value that only goes up
+	static synchronized void counter(String name, String help, LongSupplier value)
+	{
+		metrics.put(name, new Metric("counter", help, value, null));
+	}
+
+	// A value that can go up and down
+	static synchronized void gauge(String name, String help, LongSupplier value)
+	{
+		metrics.put(name, new Metric("gauge", help, value, null));
+	}
+
+	// A latency histogram, exported in seconds
+	static synchronized void histogram(String name, String help, LatencyHistogram histogram)
+	{
+		metrics.put(name, new Metric("summary", help, null, histogram));
+	}
+
+	// Serve the metrics on the loopback interface only
+	static void start(int port)
+	{
+		try
+		{
+			httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+			httpServer.createContext("/metrics", exchange ->
+			{
+				byte[] body = render().getBytes(StandardCharsets.UTF_8);
+
+				exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+				exchange.sendResponseHeaders(200, body.length);
+
+				try(OutputStream out = exchange.getResponseBody())
+				{
+					out.write(body);
+				}
+			});
+			httpServer.setExecutor(null);
+			httpServer.start();
+
+			System.out.println("Metrics available at http://127.0.0.1:" + port + "/metrics");
+		}
+
+		catch(IOException e)
+		{
+			System.err.println("ERROR starting metrics endpoint on port " + port + ": " + e.getMessage());
+		}
+	}
+
+	// Every metric in Prometheus' text format
+	static synchronized String render()
+	{
+		StringBuilder text = new StringBuilder();
+
+		for(Map.Entry<String, Metric> entry : metrics.entrySet())
+		{
+			String name = entry.getKey();
+			Metric metric = entry.getValue();
+
+			text.append("# HELP ").append(name).append(' ').append(metric.help).append('\n');
+			text.append("# TYPE ").append(name).append(' ').append(metric.type).append('\n');
+
+			if(metric.histogram == null)
+			{
+				text.append(name).append(' ').append(metric.value.getAsLong()).append('\n');
+				continue;
+			}
+
+			LatencyHistogram histogram = metric.histogram;
+			for(double quantile : new double[] {0.5, 0.9, 0.99, 0.999})
+			{
+				text.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+						.append(histogram.getValueAtPercentile(quantile * 100) / 1e9).append('\n');
+			}
+
+			text.append(name).append("_sum ").append(histogram.getSum() / 1e9).append('\n');
+			text.append(name).append("_count ").append(histogram.getCount()).append('\n');
+
+			// Summaries have no max, so it gets its own gauge
+			text.append("# TYPE ").append(name).append("_max gauge\n");
+			text.append(name).append("_max ").append(histogram.getMax() / 1e9).append('\n');
+		}
+
+		return text.toString();
+	}
+
+	private static class Metric
+	{
+		final String type;
+		final String help;
+		final LongSupplier value;
+		final LatencyHistogram histogram;
+
+		Metric(String type, String help, LongSupplier value, LatencyHistogram histogram)
+		{
+			this.type = type;
+			this.help = help;
+			this.value = value;
+			this.histogram = histogram;
+		}
+	}
+}
@@ -0,0 +1,121 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+// Creates the server's threads according to the execution mode chosen at launch
+class ServerThreads
+{
+	// Client connections multiplexed on event loops, control threads on platform threads
+	public static final String NIO = "nio";
+
+	// One blocking platform thread per client
+	public static final String PLATFORM = "platform";
+
+	// One blocking virtual thread per client, control threads also virtual
+	public static final String VIRTUAL = "virtual";
+
+	private static String mode = NIO;
+
+	// Virtual thread builder, found at runtime since it only exists on Java 21+
+	private static Object virtualBuilder;
+	private static Method nameMethod;
+	private static Method unstartedMethod;
+
+	// Runs client writes when clients don't have an event loop
+	private static Executor writerExecutor;
+
+	// Select the execution mode from the command line (defaults to nio)
+	public static void setMode(String[] args)
+	{
+		String requested = (args.length > 0) ? args[0].trim().toLowerCase() : NIO;
+
+		if(requested.equals(VIRTUAL))
+		{
+			try
+			{
+				Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+				virtualBuilder = Thread.class.getMethod("ofVirtual").invoke(null);
+				nameMethod = builderClass.getMethod("name", String.class);
+				unstartedMethod = builderClass.getMethod("unstarted", Runnable.class);
+				mode = VIRTUAL;
+			}
+
+			catch(ReflectiveOperationException e)
+			{
+				System.err.println("Virtual threads require Java 21 or newer. Using platform threads instead");
+				mode = PLATFORM;
+			}
+		}
+
+		else if(requested.equals(PLATFORM))
+			mode = PLATFORM;
+
+		else if(requested.equals(NIO))
+			mode = NIO;
+
+		else
+		{
+			System.err.println("Unknown execution mode '" + requested + "'. Using " + NIO);
+			mode = NIO;
+		}
+
+		// Every write gets its own virtual thread
+		if(mode.equals(VIRTUAL))
+			writerExecutor = task -> start(task, "Writer");
+
+		// Reuse idle platform threads between writes
+		else if(mode.equals(PLATFORM))
+			writerExecutor = Executors.newCachedThreadPool(task -> newThread(task, "Writer"));
+
+		System.out.println("Execution mode: " + mode);
+	}
+
+	// Return the current execution mode
+	public static String getMode()
+	{
+		return mode;
+	}
+
+	// Indicate whether clients are served by event loops rather than their own threads
+	public static boolean usesEventLoops()
+	{
+		return mode.equals(NIO);
+	}
+
+	// Create an unstarted thread for the given task
+	public static Thread newThread(Runnable task, String name)
+	{
+		if(mode.equals(VIRTUAL))
+		{
+			try
+			{
+				Object namedBuilder = nameMethod.invoke(virtualBuilder, name);
+				return (Thread)unstartedMethod.invoke(namedBuilder, task);
+			}
+
+			catch(ReflectiveOperationException e)
+			{
+				System.err.println("ERROR creating virtual thread " + name);
+				e.printStackTrace();
+			}
+		}
+
+		Thread thread = new Thread(task, name);
+		thread.setDaemon(true);
+		return thread;
+	}
+
+	// Create and start a thread for the given task
+	public static Thread start(Runnable task, String name)
+	{
+		Thread thread = newThread(task, name);
+		thread.start();
+		return thread;
+	}
+
+	// Get the executor used to write to clients that don't have an event loop
+	public static Executor getWriterExecutor()
+	{
+		return writerExecutor;
+	}
+}
@@ -0,0 +1,189 @@
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+// Hashed timer wheel: one thread tracks every room's phase deadlines, scheduling and cancelling are O(1)
+// Deadlines are rounded up to the next tick, and expired tasks run on the executor they were scheduled with
+class TimerWheel implements Runnable
+{
+	private final long tickNanos;
+	private final int mask;
+
+	// Each slot holds the timeouts due when the wheel reaches it, possibly some turns from now (only touched by the ticker)
+	private final ArrayDeque<Timeout>[] slots;
+
+	// Timeouts scheduled since the last tick, moved into their slots by the ticker
+	private final ConcurrentLinkedQueue<Timeout> added;
+
+	private final long startTime;
+	private long tick;
+
+	// Timeouts scheduled and not yet expired or cancelled
+	private final AtomicInteger numPending;
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public TimerWheel(long tickDuration, TimeUnit unit, int numSlots)
+	{
+		tickNanos = Math.max(1, unit.toNanos(tickDuration));
+
+		// Round up to a power of two so the slot is a mask of the tick
+		int size = Integer.highestOneBit(Math.max(1, numSlots - 1)) << 1;
+		mask = size - 1;
+
+		slots = new ArrayDeque[size];
+		for(int i = 0; i < size; i++)
+			slots[i] = new ArrayDeque<Timeout>();
+
+		added = new ConcurrentLinkedQueue<Timeout>();
+		startTime = System.nanoTime();
+		tick = 0;
+		numPending = new AtomicInteger(0);
+	}
+
+	// Run a task on the executor once the delay has passed, unless it's cancelled first
+	public Timeout schedule(Runnable task, long delay, TimeUnit unit, Executor executor)
+	{
+		Timeout timeout = new Timeout(task, executor, System.nanoTime() - startTime + unit.toNanos(Math.max(0, delay)));
+
+		numPending.incrementAndGet();
+		added.add(timeout);
+
+		return timeout;
+	}
+
+	// Number of deadlines waiting to expire
+	public int getNumPending()
+	{
+		return numPending.get();
+	}
+
+	// Advance the wheel one tick at a time, for as long as the server runs
+	@Override
+	public void run()
+	{
+		while(true)
+		{
+			// Sleep until the end of the current tick, measured from the start so ticks don't drift
+			long tickEnd = startTime + (tick + 1) * tickNanos;
+			long now;
+			while((now = System.nanoTime()) - tickEnd < 0)
+				LockSupport.parkNanos(tickEnd - now);
+
+			addScheduled();
+			expire(slots[(int)(tick & mask)]);
+			tick++;
+		}
+	}
+
+	// Put newly scheduled timeouts in their slots
+	private void addScheduled()
+	{
+		Timeout timeout;
+		while((timeout = added.poll()) != null)
+		{
+			if(timeout.isCancelled())
+				continue;
+
+			// Ticks from the start until the deadline has passed, never earlier than the tick being expired now
+			long dueTick = Math.max(tick, (timeout.deadline + tickNanos - 1) / tickNanos - 1);
+			timeout.remainingTurns = (dueTick - tick) / slots.length;
+			slots[(int)(dueTick & mask)].add(timeout);
+		}
+	}
+
+	// Hand the slot's due timeouts to their executors, dropping cancelled ones and leaving the rest for a later turn
+	private void expire(ArrayDeque<Timeout> slot)
+	{
+		for(int i = slot.size(); i > 0; i--)
+		{
+			Timeout timeout = slot.poll();
+
+			if(timeout.isCancelled())
+				continue;
+
+			if(timeout.remainingTurns > 0)
+			{
+				timeout.remainingTurns--;
+				slot.add(timeout);
+			}
+
+			else
+				timeout.expire();
+		}
+	}
+
+	// A scheduled task, which can be cancelled right up until it starts running
+	class Timeout
+	{
+		private static final int PENDING = 0;
+		private static final int EXPIRED = 1;		// Handed to the executor, not started yet
+		private static final int RUN = 2;
+		private static final int CANCELLED = 3;
+
+		private final Runnable task;
+		private final Executor executor;
+		private final long deadline;	// Nanoseconds after the wheel started
+		private final AtomicInteger state;
+		private long remainingTurns;	// Only touched by the ticker
+
+		Timeout(Runnable task, Executor executor, long deadline)
+		{
+			this.task = task;
+			this.executor = executor;
+			this.deadline = deadline;
+			state = new AtomicInteger(PENDING);
+		}
+
+		// Stop the task from running, returns false if it has already started or was already cancelled
+		public boolean cancel()
+		{
+			while(true)
+			{
+				int current = state.get();
+
+				if(current == RUN || current == CANCELLED)
+					return false;
+
+				if(state.compareAndSet(current, CANCELLED))
+				{
+					// Counted as pending until it was handed to the executor
+					if(current == PENDING)
+						numPending.decrementAndGet();
+
+					return true;
+				}
+			}
+		}
+
+		public boolean isCancelled()
+		{
+			return state.get() == CANCELLED;
+		}
+
+		private void expire()
+		{
+			if(!state.compareAndSet(PENDING, EXPIRED))
+				return;
+
+			numPending.decrementAndGet();
+
+			try
+			{
+				executor.execute(() ->
+				{
+					// Skip the task if it was cancelled while waiting for the executor
+					if(state.compareAndSet(EXPIRED, RUN))
+						task.run();
+				});
+			}
+
+			catch(RuntimeException e)
+			{
+				System.err.println("ERROR running expired timer task: " + e);
+			}
+		}
+	}
+}